@@ -83,6 +83,11 @@
 // default speed
 #define PAUSE_DELAY 1
 
+// how often queueCommand() checks for a free slot while the ring is full,
+// and how often it tells the host it is still waiting (ms)
+#define WAIT_POLL_DELAY 1
+#define WAIT_REPORT_INTERVAL 1000
+
 // possible commands
 #define CMD_NONE 0
 #define CMD_LINE_A 1
@@ -99,6 +104,24 @@
 #define CMD_CHAR_MOVE_R 'm'
 #define CMD_CHAR_OFF 'o'
 #define CMD_CHAR_ON 'O'
+#define CMD_CHAR_BINARY 'B'
+// step targets computed by the host, absolute and relative, pen up and down
+#define CMD_CHAR_STEPS_UP 'U'
+#define CMD_CHAR_STEPS_DOWN 'D'
+#define CMD_CHAR_STEPS_UP_R 'u'
+#define CMD_CHAR_STEPS_DOWN_R 'd'
+
+// binary frames: command char, sequence number, zig-zag varint x,
+// zig-zag varint y, checksum (XOR of the bytes before), end
+#define FRAME_END '\r'
+
+// sequenced ASCII lines look like "N12 L 100 200*57", the checksum is the
+// XOR of all bytes before the '*'. Commands that are up to SEQ_WINDOW
+// behind the expected one are acknowledged again (their OK got lost).
+// Once a sequenced line has been seen, every line that is not one is
+// rejected, so a garbled 'N' is neither run nor taken for an unknown
+// command. The switch to binary frames is a sequenced 'B' command.
+#define SEQ_WINDOW 16
 
 // pin defines
 #define MS1_PIN 2
@@ -123,9 +146,18 @@ long stepsM1 = 0;
 long stepsM2 = 0;
 long targetM1 = 0;
 long targetM2 = 0;
+// step targets of the last queued command
+long queuedM1 = 0;
+long queuedM2 = 0;
 byte penState = PEN_UP;
 
 char line[MAX_BUFFER_SIZE];
+byte binaryMode = 0;
+byte expectedSeq = 0;
+// set after a rejected command, until the expected one arrives
+byte resync = 0;
+// set once the host sends sequenced commands
+byte sequenced = 0;
 
 typedef struct {
   char cmd;
@@ -137,8 +169,9 @@ typedef struct {
 
 #define MAX_COMMANDS 10
 command cmdBuffer[MAX_COMMANDS];
-byte readPtr = 0;
-byte writePtr = 0;
+// readPtr is advanced by the timer interrupt
+volatile byte readPtr = 0;
+volatile byte writePtr = 0;
 
 
 void setup() {
@@ -159,6 +192,8 @@ void setup() {
   stepsM2 = computeB(START_X, START_Y) / m2s;
   targetM1 = stepsM1;
   targetM2 = stepsM2;
+  queuedM1 = stepsM1;
+  queuedM2 = stepsM2;
   Serial.print("#start steps: "); Serial.print(stepsM1); Serial.print(" "); Serial.println(stepsM2);
 
   pinMode(MS1_PIN, OUTPUT);
@@ -204,6 +239,9 @@ void setup() {
   while (Serial.available()) {
     Serial.read();
   }
+  // announce binary frames, the host switches with a sequenced 'B' command
+  Serial.println("#proto bin3");
+  Serial.println("#proto steps");
   Serial.println("OK");
 
 }
@@ -404,37 +442,104 @@ char *readToken(char *str, char *buf, char delimiter) {
   return str;
 }
 
+void ack(int seq) {
+  if (seq < 0) {
+    Serial.println("OK");
+  }
+  else {
+    Serial.print("OK ");
+    Serial.println(seq);
+  }
+}
+
+// asks the host to send everything from the expected command on again,
+// only once per error, the rest of the window is dropped silently
+void reject() {
+  if (!resync) {
+    Serial.print("RS ");
+    Serial.println(expectedSeq);
+    resync = 1;
+  }
+  binaryMode = 0;
+}
+
+// returns 1 if a sequenced command is the expected one
+byte checkSeq(byte seq) {
+  if (seq == expectedSeq) {
+    return 1;
+  }
+  if ((byte)(expectedSeq - seq) <= SEQ_WINDOW) {
+    ack(seq);
+  }
+  else {
+    reject();
+  }
+  return 0;
+}
+
 byte parseLine(char *line) {
 
-  byte newWritePtr;
   char tcmd;
   long tx = 0, ty = 0;
-  long a, b;
   char buf[10];
-
-  digitalWrite(LED_PIN2, HIGH);
-
-  // wait until there is space for this command
-  do {
-    newWritePtr = (writePtr+1) % MAX_COMMANDS;
-    if (newWritePtr == readPtr) {
-      delay(1000);
-      Serial.println("#waiting ...");
+  int seq = -1;
+  char *star;
+  byte sum = 0;
+
+  if (line[0] == 'N') {
+    star = strchr(line, '*');
+    if (star == NULL) {
+      reject();
+      return 0;
+    }
+    for (char *p = line; p < star; p++) {
+      sum ^= *p;
     }
-  } while (newWritePtr == readPtr);
+    if (sum != (byte)atoi(star + 1)) {
+      reject();
+      return 0;
+    }
+    sequenced = 1;
+    *star = '\0';
+    seq = atoi(line + 1);
+    line = strchr(line, ' ');
+    if (line == NULL) {
+      reject();
+      return 0;
+    }
+    line++;
+    if (!checkSeq(seq)) {
+      return 0;
+    }
+  }
+  else if (sequenced) {
+    // garbled, or left overs of a rejected window
+    reject();
+    return 0;
+  }
+  else if (resync) {
+    // left overs of the rejected window
+    return 0;
+  }
+
+  if ((line[0] == CMD_CHAR_BINARY) && (seq >= 0)) {
+    // switch to binary frames, nothing to queue
+    binaryMode = 1;
+    expectedSeq++;
+    resync = 0;
+    ack(seq);
+    return 0;
+  }
 
   switch (line[0]) {
   case 'm':
   case 'l':
-    tcmd = line[0];
-    line += 2; // skip command and space
-    line = readToken(line, buf, ' ');
-    tx = atol(buf) + currentX;
-    line = readToken(line, buf, ' ');
-    ty = atol(buf) + currentY;
-    break;
   case 'M':
   case 'L':
+  case CMD_CHAR_STEPS_UP:
+  case CMD_CHAR_STEPS_DOWN:
+  case CMD_CHAR_STEPS_UP_R:
+  case CMD_CHAR_STEPS_DOWN_R:
     tcmd = line[0];
     line += 2; // skip command and space
     line = readToken(line, buf, ' ');
@@ -445,26 +550,93 @@ byte parseLine(char *line) {
   case 'O':
   case 'o':
     tcmd = line[0];
-    tx = currentX;
-    ty = currentY;
     break;
   default:
+    if (seq >= 0) {
+      reject();
+      return 0;
+    }
     Serial.print("#unknown command: ");
     Serial.println(line[0]);
     return 1;
   }
+  queueCommand(tcmd, tx, ty);
+  if (seq >= 0) {
+    expectedSeq++;
+    resync = 0;
+  }
+  ack(seq);
+  return 0;
+}
+
+void queueCommand(char tcmd, long tx, long ty) {
+
+  byte newWritePtr;
+  long a, b;
+  unsigned long waitStart;
+
+  digitalWrite(LED_PIN2, HIGH);
+
+  // wait until there is space for this command, the stepper frees a slot
+  // every few ms
+  newWritePtr = (writePtr+1) % MAX_COMMANDS;
+  waitStart = millis();
+  while (newWritePtr == readPtr) {
+    delay(WAIT_POLL_DELAY);
+    // keep the host from timing out on a long move
+    if (millis() - waitStart >= WAIT_REPORT_INTERVAL) {
+      Serial.println("#waiting ...");
+      waitStart = millis();
+    }
+  }
+
+  switch (tcmd) {
+  case CMD_CHAR_STEPS_UP_R:
+  case CMD_CHAR_STEPS_DOWN_R:
+    tx += queuedM1;
+    ty += queuedM2;
+    // fall through
+  case CMD_CHAR_STEPS_UP:
+  case CMD_CHAR_STEPS_DOWN:
+    // the host did the kinematics and the clamping, currentX/Y stay
+    // those of the last 'M'/'L' command
+    if (!binaryMode) {
+      Serial.print("#cmd: ");
+      Serial.print(tcmd);
+      Serial.print(", m1:" );
+      Serial.print(tx);
+      Serial.print(", m2:");
+      Serial.println(ty);
+    }
+    tcmd = ((tcmd == CMD_CHAR_STEPS_UP) || (tcmd == CMD_CHAR_STEPS_UP_R))
+      ? CMD_CHAR_MOVE_A : CMD_CHAR_LINE_A;
+    storeCommand(newWritePtr, tcmd, currentX, currentY, tx, ty);
+    return;
+  case 'm':
+  case 'l':
+    tx += currentX;
+    ty += currentY;
+    break;
+  case 'O':
+  case 'o':
+    tx = currentX;
+    ty = currentY;
+    break;
+  }
 
   if (tx < MIN_X) tx = MIN_X;
   if (tx > MAX_X) tx = MAX_X;
   if (ty < MIN_Y) ty = MIN_Y;
   if (ty > MAX_Y) ty = MAX_Y;
 
-  Serial.print("#cmd: ");
-  Serial.print(tcmd);
-  Serial.print(", x:" );
-  Serial.print(tx);
-  Serial.print(", y:");
-  Serial.println(ty);
+  if (!binaryMode) {
+    Serial.print("#cmd: ");
+    Serial.print(tcmd);
+    Serial.print(", x:" );
+    Serial.print(tx);
+    Serial.print(", y:");
+    Serial.println(ty);
+  }
 
   // compute a and b from x and y
   a = computeA(tx, ty);
@@ -472,48 +644,126 @@ byte parseLine(char *line) {
 
   currentX = tx;
   currentY = ty;
-  cmdBuffer[newWritePtr].x = tx;
-  cmdBuffer[newWritePtr].y = ty;
+  // convert to steps for motor 1 and 2
+  storeCommand(newWritePtr, tcmd, tx, ty, a / m2s, b / m2s);
+}
+
+void storeCommand(byte newWritePtr, char tcmd, long x, long y, long tM1, long tM2) {
+  cmdBuffer[newWritePtr].x = x;
+  cmdBuffer[newWritePtr].y = y;
   cmdBuffer[newWritePtr].cmd = tcmd;
-  cmdBuffer[newWritePtr].targetM1 = a / m2s;  // convert to steps for motor 1
-  cmdBuffer[newWritePtr].targetM2 = b / m2s;  // convert to steps for motor 2
+  cmdBuffer[newWritePtr].targetM1 = tM1;
+  cmdBuffer[newWritePtr].targetM2 = tM2;
+  if ((tcmd != CMD_CHAR_ON) && (tcmd != CMD_CHAR_OFF)) {
+    queuedM1 = tM1;
+    queuedM2 = tM2;
+  }
 
   // advance the write ptr
   writePtr = newWritePtr;
 
   digitalWrite(LED_PIN2, LOW);
-  Serial.println("OK");
+}
+
+byte readByte() {
+  while (!Serial.available()) {
+    ;
+  }
+  return Serial.read();
+}
+
+// reads at most 5 bytes, a 5th byte with the continuation bit makes the
+// frame invalid
+long readVarint(byte *sum, byte *valid) {
+  unsigned long v = 0;
+  byte shift = 0;
+  byte c;
+  do {
+    c = readByte();
+    *sum ^= c;
+    v |= (unsigned long)(c & 0x7F) << shift;
+    shift += 7;
+  } while ((c & 0x80) && (shift < 35));
+  if (c & 0x80) {
+    *valid = 0;
+  }
+  // undo zig-zag encoding
+  return (long)(v >> 1) ^ -(long)(v & 1);
+}
+
+byte readFrame() {
+  char tcmd;
+  byte seq, sum;
+  byte valid = 1;
+  long tx, ty;
+  tcmd = readByte();
+  switch (tcmd) {
+  case 'm':
+  case 'l':
+  case 'M':
+  case 'L':
+  case CMD_CHAR_STEPS_UP:
+  case CMD_CHAR_STEPS_DOWN:
+  case CMD_CHAR_STEPS_UP_R:
+  case CMD_CHAR_STEPS_DOWN_R:
+    break;
+  default:
+    reject();
+    return 0;
+  }
+  sum = tcmd;
+  seq = readByte();
+  sum ^= seq;
+  tx = readVarint(&sum, &valid);
+  ty = readVarint(&sum, &valid);
+  if ((readByte() != sum) || (readByte() != FRAME_END) || !valid) {
+    reject();
+    return 0;
+  }
+  if (!checkSeq(seq)) {
+    return 0;
+  }
+  queueCommand(tcmd, tx, ty);
+  expectedSeq++;
+  resync = 0;
+  ack(seq);
   return 0;
 }
 
 byte readLine(char *line, byte size) {
   byte length = 0;
   char c;
-  while (length < size) {
+  // leave room for the terminator, garbage may come without line end
+  while (length < size - 1) {
     if (Serial.available()) {
       c = Serial.read();
       length++;
       if ((c == '\r') || (c == '\n')) {
-	*line = '\0';
         break;
       }
       *line++ = c;
     }
   }
+  *line = '\0';
   return length;
 }
 
 void loop() {
   byte length;
-  byte error;
-  length = readLine(line, MAX_BUFFER_SIZE);
-  if (length > 0) {
-    error = parseLine(line);
-    if (error) {
-      Serial.println("errored, stopped!");
-      while (true);
+  byte error = 0;
+  if (binaryMode) {
+    error = readFrame();
+  }
+  else {
+    length = readLine(line, MAX_BUFFER_SIZE);
+    if (length > 0) {
+      error = parseLine(line);
     }
   }
+  if (error) {
+    Serial.println("errored, stopped!");
+    while (true);
+  }
 
 }
 
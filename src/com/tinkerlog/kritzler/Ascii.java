@@ -0,0 +1,114 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * Helpers to format and compare ASCII text in byte arrays without creating
+ * Strings.
+ */
+final class Ascii {
+
+  /** Maximum number of bytes formatInt() writes, sign included. */
+  static final int MAX_INT_LENGTH = 11;
+
+  private Ascii() {
+  }
+
+  /**
+   * Writes the decimal representation of an int
+   *
+   * @param value
+   *            Value to format
+   * @param buf
+   *            Target buffer, needs MAX_INT_LENGTH bytes of space
+   * @param pos
+   *            Position to start writing at
+   * @return Position behind the last written byte
+   */
+  static int formatInt(int value, byte[] buf, int pos) {
+    if (value == Integer.MIN_VALUE) {
+      // cannot be negated, never a plotter coordinate anyway
+      value++;
+    }
+    if (value < 0) {
+      buf[pos++] = '-';
+      value = -value;
+    }
+    int start = pos;
+    do {
+      buf[pos++] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value != 0);
+    // digits were written in reverse order
+    for (int i = start, j = pos - 1; i < j; i++, j--) {
+      byte b = buf[i];
+      buf[i] = buf[j];
+      buf[j] = b;
+    }
+    return pos;
+  }
+
+  /**
+   * Returns the number of bytes formatInt() would write
+   *
+   * @param value
+   *            Value to measure
+   * @return Number of digits, plus one for the sign of negative values
+   */
+  static int length(int value) {
+    int n = 1;
+    if (value < 0) {
+      n++;
+      value = (value == Integer.MIN_VALUE) ? Integer.MAX_VALUE : -value;
+    }
+    while (value >= 10) {
+      value /= 10;
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Compares a region of a byte buffer with an ASCII string
+   *
+   * @return True if the region holds exactly the given text
+   */
+  static boolean equals(byte[] buf, int off, int len, String s) {
+    if (len != s.length()) {
+      return false;
+    }
+    for (int i = 0; i < len; i++) {
+      if (buf[off + i] != s.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks whether a line starts with the given ASCII text
+   *
+   * @return True if the first bytes of the line match
+   */
+  static boolean startsWith(byte[] buf, int len, String prefix) {
+    return len >= prefix.length() && equals(buf, 0, prefix.length(), prefix);
+  }
+
+  /**
+   * Parses a non-negative decimal number, stopping at the first non digit
+   *
+   * @param buf
+   *            Buffer holding the digits
+   * @param from
+   *            Position of the first digit
+   * @param to
+   *            End of the buffer region
+   * @return Parsed value, 0 if there are no digits
+   */
+  static int parseInt(byte[] buf, int from, int to) {
+    int value = 0;
+    for (int i = from; i < to && buf[i] >= '0' && buf[i] <= '9'; i++) {
+      value = value * 10 + (buf[i] - '0');
+    }
+    return value;
+  }
+
+}
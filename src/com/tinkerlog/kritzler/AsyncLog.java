@@ -0,0 +1,152 @@
+package com.tinkerlog.kritzler;
+
+import java.io.PrintStream;
+
+/**
+ * Garbage free message channel from the serial I/O thread to the UI thread.
+ * Messages are written into preallocated byte entries that circulate
+ * between two SpscQueues: the producer takes a free entry, fills it and
+ * publishes it, the UI thread prints it in draw() and hands it back. If the
+ * UI does not keep up, messages are dropped and counted instead of blocking
+ * the producer.
+ */
+public class AsyncLog {
+
+  private static final int ENTRY_SIZE = 128;
+  private static final int OUT_SIZE = 8192;
+
+  private final SpscQueue<Entry> free;
+  private final SpscQueue<Entry> filled;
+  private final PrintStream out;
+  private final byte[] outBuf = new byte[OUT_SIZE];
+  private volatile int dropped;  // written by the producer only
+  private int reported;
+
+  /**
+   * Creates a new logger
+   *
+   * @param entries
+   *            Number of messages that can be pending at a time
+   * @param out
+   *            Stream to write to
+   */
+  public AsyncLog(int entries, PrintStream out) {
+    this.out = out;
+    free = new SpscQueue<Entry>(entries);
+    filled = new SpscQueue<Entry>(entries);
+    for (int i = 0; i < entries; i++) {
+      free.offer(new Entry());
+    }
+  }
+
+  /**
+   * Takes a free entry to write a message into. To be called by the producer
+   * thread only, followed by publish().
+   *
+   * @return Empty entry or null if all entries are pending
+   */
+  public Entry claim() {
+    Entry e = free.poll();
+    if (e == null) {
+      dropped++;
+      return null;
+    }
+    e.length = 0;
+    return e;
+  }
+
+  /**
+   * Hands a filled entry to the consumer thread
+   *
+   * @param e
+   *            Entry from claim()
+   */
+  public void publish(Entry e) {
+    filled.offer(e);
+  }
+
+  /**
+   * Logs a constant message
+   *
+   * @param msg
+   *            Message to log
+   */
+  public void log(String msg) {
+    Entry e = claim();
+    if (e != null) {
+      publish(e.append(msg));
+    }
+  }
+
+  /**
+   * Prints everything that is pending and hands the entries back. To be
+   * called by the consumer thread only.
+   *
+   * @return True if anything was printed
+   */
+  public boolean drain() {
+    int n = 0;
+    Entry e;
+    while ((e = filled.poll()) != null) {
+      if (n + e.length + 1 > OUT_SIZE) {
+        out.write(outBuf, 0, n);
+        n = 0;
+      }
+      System.arraycopy(e.data, 0, outBuf, n, e.length);
+      n += e.length;
+      outBuf[n++] = '\n';
+      free.offer(e);
+    }
+    int d = dropped - reported;
+    if (d > 0) {
+      reported += d;
+      out.write(outBuf, 0, n);
+      out.println("(" + d + " log messages dropped)");
+      n = 0;
+    }
+    if (n > 0) {
+      out.write(outBuf, 0, n);
+      out.flush();
+      return true;
+    }
+    return d > 0;
+  }
+
+  /**
+   * A reusable message buffer. Anything that does not fit is cut off.
+   */
+  public static class Entry {
+
+    private final byte[] data = new byte[ENTRY_SIZE];
+    private int length;
+
+    public Entry append(String s) {
+      for (int i = 0; i < s.length() && length < ENTRY_SIZE; i++) {
+        data[length++] = (byte) s.charAt(i);
+      }
+      return this;
+    }
+
+    public Entry append(char c) {
+      if (length < ENTRY_SIZE) {
+        data[length++] = (byte) c;
+      }
+      return this;
+    }
+
+    public Entry append(byte[] b, int off, int len) {
+      len = Math.min(len, ENTRY_SIZE - length);
+      System.arraycopy(b, off, data, length, len);
+      length += len;
+      return this;
+    }
+
+    public Entry append(int value) {
+      if (length + Ascii.MAX_INT_LENGTH <= ENTRY_SIZE) {
+        length = Ascii.formatInt(value, data, length);
+      }
+      return this;
+    }
+  }
+
+}
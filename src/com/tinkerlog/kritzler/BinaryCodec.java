@@ -0,0 +1,226 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * Compact binary framing of Kritzler commands. A frame is
+ *
+ * <pre>
+ *   opcode  seq  x  y  checksum  FRAME_END
+ * </pre>
+ *
+ * where the opcode is the command char the ASCII protocol uses ('M', 'L',
+ * 'm', 'l' and the step target commands 'U', 'D', 'u', 'd'), seq is the
+ * sequence number (0..255) and x, y are zig-zag encoded varints (7 bits per
+ * byte, least significant group first, high bit set on all but the last
+ * byte). A varint has at most 5 bytes, a 5th byte with the high bit set
+ * makes the frame invalid. The checksum is the XOR of all bytes before
+ * it. Relative commands carry deltas, so short segments take 6 bytes instead
+ * of ~15-23 for a sequenced ASCII line.
+ *
+ * The firmware announces support for binary frames and sequenced ASCII lines
+ * ("N12 L 100 200*57") with the PROTOCOL_BANNER line before its first OK, the
+ * host switches to frames by sending SWITCH_COMMAND as a sequenced ASCII
+ * command ("N0 B 0 0*..."), which is acknowledged and resent like any other.
+ * A rejected frame is answered with "RS seq" and puts the firmware back into
+ * ASCII mode.
+ * The Decoder is a byte for byte reference of the firmware's readFrame().
+ */
+public final class BinaryCodec {
+
+  /** Line printed by firmware that understands binary frames. */
+  public static final String PROTOCOL_BANNER = "#proto bin3";
+
+  /** ASCII command that switches the firmware to binary frames. */
+  public static final char SWITCH_COMMAND = 'B';
+
+  public static final byte FRAME_END = '\r';
+
+  /** Longest possible frame: opcode, seq, two 5 byte varints, checksum, end. */
+  public static final int MAX_FRAME_LENGTH = 14;
+
+  private BinaryCodec() {
+  }
+
+  /**
+   * Encodes one frame
+   *
+   * @param op
+   *            Command char
+   * @param seq
+   *            Sequence number, 0..255
+   * @param x
+   *            X coordinate or delta
+   * @param y
+   *            Y coordinate or delta
+   * @param buf
+   *            Target buffer with MAX_FRAME_LENGTH bytes of space
+   * @param pos
+   *            Position to start writing at
+   * @return Position behind the frame
+   */
+  public static int encode(char op, int seq, int x, int y, byte[] buf, int pos) {
+    int start = pos;
+    buf[pos++] = (byte) op;
+    buf[pos++] = (byte) seq;
+    pos = writeVarint(zigZag(x), buf, pos);
+    pos = writeVarint(zigZag(y), buf, pos);
+    byte checksum = 0;
+    for (int i = start; i < pos; i++) {
+      checksum ^= buf[i];
+    }
+    buf[pos++] = checksum;
+    buf[pos++] = FRAME_END;
+    return pos;
+  }
+
+  /**
+   * Returns the number of bytes a value takes in a frame
+   *
+   * @param value
+   *            Coordinate or delta
+   * @return 1 to 5
+   */
+  public static int length(int value) {
+    int v = zigZag(value);
+    int n = 1;
+    while ((v & ~0x7F) != 0) {
+      v >>>= 7;
+      n++;
+    }
+    return n;
+  }
+
+  static int zigZag(int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  static int unZigZag(int value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static int writeVarint(int v, byte[] buf, int pos) {
+    while ((v & ~0x7F) != 0) {
+      buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    buf[pos++] = (byte) v;
+    return pos;
+  }
+
+  /**
+   * Incremental frame decoder, fed one byte at a time like the firmware
+   * reads the serial line.
+   */
+  public static class Decoder {
+
+    public static final int NEED_MORE = 0;
+    public static final int FRAME = 1;
+    public static final int ERROR = -1;
+
+    private static final int STATE_OP = 0;
+    private static final int STATE_SEQ = 1;
+    private static final int STATE_X = 2;
+    private static final int STATE_Y = 3;
+    private static final int STATE_CHECKSUM = 4;
+    private static final int STATE_END = 5;
+
+    private int state = STATE_OP;
+    private int value;
+    private int shift;
+    private int checksum;
+    private boolean valid;
+
+    /** Fields of the last complete frame. */
+    public char op;
+    public int seq;
+    public int x;
+    public int y;
+
+    /**
+     * Feeds the next byte
+     *
+     * @param b
+     *            Byte read from the line, 0..255
+     * @return FRAME if a frame is complete, ERROR if it was malformed,
+     *         NEED_MORE otherwise
+     */
+    public int feed(int b) {
+      switch (state) {
+      case STATE_OP:
+        if (!isCommand(b)) {
+          return ERROR;
+        }
+        op = (char) b;
+        checksum = b;
+        value = 0;
+        shift = 0;
+        valid = true;
+        state = STATE_SEQ;
+        return NEED_MORE;
+      case STATE_SEQ:
+        seq = b;
+        checksum ^= b;
+        state = STATE_X;
+        return NEED_MORE;
+      case STATE_X:
+      case STATE_Y:
+        checksum ^= b;
+        value |= (b & 0x7F) << shift;
+        shift += 7;
+        // like the firmware, the 5th byte ends the value in any case and
+        // the frame is rejected at its end
+        if ((b & 0x80) == 0 || shift == 35) {
+          if ((b & 0x80) != 0) {
+            valid = false;
+          }
+          if (state == STATE_X) {
+            x = unZigZag(value);
+            state = STATE_Y;
+          }
+          else {
+            y = unZigZag(value);
+            state = STATE_CHECKSUM;
+          }
+          value = 0;
+          shift = 0;
+        }
+        return NEED_MORE;
+      case STATE_CHECKSUM:
+        if (b != checksum) {
+          reset();
+          return ERROR;
+        }
+        state = STATE_END;
+        return NEED_MORE;
+      case STATE_END:
+        state = STATE_OP;
+        return (b == FRAME_END && valid) ? FRAME : ERROR;
+      }
+      return ERROR;
+    }
+
+    private static boolean isCommand(int b) {
+      switch (b) {
+      case 'M':
+      case 'L':
+      case 'm':
+      case 'l':
+      case 'U':
+      case 'D':
+      case 'u':
+      case 'd':
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Drops a partially read frame
+     */
+    public void reset() {
+      state = STATE_OP;
+      value = 0;
+      shift = 0;
+    }
+  }
+
+}
@@ -0,0 +1,151 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * Clips polylines to a rectangle, the area the plotter can reach. The
+ * firmware clamps targets outside of it to the border, which smears
+ * everything beyond the edge along it. Segments are clipped with
+ * Liang-Barsky instead, a polyline that leaves the rectangle is split into
+ * the pieces inside, and polylines completely outside are dropped.
+ */
+public class EnvelopeClipper {
+
+  private final float minX, minY, maxX, maxY;
+
+  // parameters of the segment being clipped
+  private float t0, t1;
+
+  /**
+   * Creates a clipper
+   *
+   * @param minX
+   *            Left edge
+   * @param minY
+   *            Top edge
+   * @param maxX
+   *            Right edge
+   * @param maxY
+   *            Bottom edge
+   */
+  public EnvelopeClipper(float minX, float minY, float maxX, float maxY) {
+    this.minX = minX;
+    this.minY = minY;
+    this.maxX = maxX;
+    this.maxY = maxY;
+  }
+
+  /**
+   * Clips polylines, taking paths whose bounds are inside without looking
+   * at their points
+   *
+   * @param paths
+   *            The paths
+   * @return The parts inside
+   */
+  public PathIndex clip(PathIndex paths) {
+    PathIndex result = new PathIndex(paths.size, paths.getPointCount());
+    float[] b = paths.bounds;
+    for (int i = 0; i < paths.size; i++) {
+      if (b[4 * i] >= minX && b[4 * i + 1] >= minY && b[4 * i + 2] <= maxX
+          && b[4 * i + 3] <= maxY) {
+        result.addPath(paths, i);
+      }
+      else {
+        clip(paths.xs, paths.ys, paths.offset[i], paths.getPointCount(i), result);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Clips a polyline
+   *
+   * @param xs
+   *            X coordinates
+   * @param ys
+   *            Y coordinates
+   * @param from
+   *            Index of the first point
+   * @param n
+   *            Number of points
+   * @param result
+   *            Gets the pieces inside
+   */
+  public void clip(float[] xs, float[] ys, int from, int n, PathIndex result) {
+    boolean inside = true;
+    for (int k = from; k < from + n && inside; k++) {
+      inside = contains(xs[k], ys[k]);
+    }
+    if (inside) {
+      result.addPath(xs, ys, from, n);
+      return;
+    }
+    result.endPath();
+    // true while the piece being added ends at the previous point
+    boolean open = false;
+    for (int k = from + 1; k < from + n; k++) {
+      float ax = xs[k - 1];
+      float ay = ys[k - 1];
+      float bx = xs[k];
+      float by = ys[k];
+      if (!clipSegment(ax, ay, bx, by)) {
+        open = false;
+        continue;
+      }
+      if (t0 != 0 || !open) {
+        result.endPath();
+        result.addPoint(ax + t0 * (bx - ax), ay + t0 * (by - ay));
+      }
+      if (t1 == 1) {
+        result.addPoint(bx, by);
+      }
+      else {
+        result.addPoint(ax + t1 * (bx - ax), ay + t1 * (by - ay));
+      }
+      open = t1 == 1;
+    }
+    result.endPath();
+  }
+
+  private boolean contains(float x, float y) {
+    return x >= minX && x <= maxX && y >= minY && y <= maxY;
+  }
+
+  /**
+   * Liang-Barsky: finds the part t0..t1 of the segment inside
+   *
+   * @return False if no part is inside
+   */
+  private boolean clipSegment(float x1, float y1, float x2, float y2) {
+    float dx = x2 - x1;
+    float dy = y2 - y1;
+    t0 = 0;
+    t1 = 1;
+    return clipEdge(-dx, x1 - minX) && clipEdge(dx, maxX - x1)
+        && clipEdge(-dy, y1 - minY) && clipEdge(dy, maxY - y1) && t1 > t0;
+  }
+
+  private boolean clipEdge(float p, float q) {
+    if (p == 0) {
+      return q >= 0;
+    }
+    float r = q / p;
+    if (p < 0) {
+      if (r > t1) {
+        return false;
+      }
+      if (r > t0) {
+        t0 = r;
+      }
+    }
+    else {
+      if (r < t0) {
+        return false;
+      }
+      if (r < t1) {
+        t1 = r;
+      }
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,877 @@
+package com.tinkerlog.kritzler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * In-process model of the kritzlershield firmware behind a serial line, so
+ * streaming throughput can be measured and regressed without hardware. Time
+ * is virtual (microseconds) and only advances in advance(), which makes every
+ * run deterministic.
+ *
+ * Modelled are the serial line (10 bit times per byte at the given baud rate
+ * plus a fixed latency), the 63 usable bytes of the AVR receive buffer (bytes
+ * arriving while it is full are lost), the blocking transmit buffer, the time
+ * loop() needs to parse a command and compute its step targets, the command
+ * ring with MAX_COMMANDS slots and its wait for a free slot, and the stepper
+ * state machine tick by tick: PEN_DELAY for the servo and three ticks per
+ * Bresenham step, see Polargraph. The line protocol is that of the firmware:
+ * start up messages, plain, sequenced and binary commands, OK / "OK n" and
+ * "RS n". Once a sequenced line was seen, every other line is rejected. A
+ * simulator without sequencing behaves like the old firmware and stops at
+ * the first command it does not know.
+ *
+ * The simulator is not thread safe, drive it and the Kritzler from one
+ * thread, see simulate().
+ */
+public class FirmwareSimulator implements Transport {
+
+  public static final int MAX_COMMANDS = 10;
+
+  /** HardwareSerial keeps one slot of its 64 byte buffers empty. */
+  public static final int RX_BUFFER = 63;
+  public static final int TX_BUFFER = 63;
+
+  private static final int MAX_BUFFER_SIZE = 50;
+  private static final int SEQ_WINDOW = 16;
+
+  /** delay() calls in setup(): three blinks and the servo. */
+  private static final long STARTUP_MICROS = 3500000;
+  /** The old firmware slept this long when its ring was full. */
+  private static final long WAIT_MICROS = 1000000;
+  /** The current one polls the ring, and reports every WAIT_MICROS. */
+  private static final long WAIT_POLL_MICROS = 1000;
+
+  private static final int CPU_READ = 0;
+  private static final int CPU_EXEC = 1;
+  private static final int CPU_HALTED = 2;
+
+  private static final int ACTION_STARTUP = 0;
+  private static final int ACTION_LINE = 1;
+  private static final int ACTION_FRAME = 2;
+  private static final int ACTION_QUEUE = 3;
+
+  // link and firmware parameters
+  private final long byteMicros;
+  private final long latencyMicros;
+  private final boolean sequencing;
+  private long lineMicros = 600;
+  private long frameMicros = 150;
+  private long queueMicros = 400;
+  private long stepMicros = 40;
+  private double errorRate;
+  private Random random = new Random(1);
+
+  private long now;
+  private final ByteFifo inbound = new ByteFifo();  // on the wire to the device
+  private final ByteFifo rx = new ByteFifo();  // in the receive buffer
+  private final ByteFifo outbound = new ByteFifo();  // on the wire to the host
+  private long inboundFree;
+  private long txFree;
+
+  // loop() state
+  private int cpuState = CPU_EXEC;
+  private long cpuTime = STARTUP_MICROS;
+  private int action = ACTION_STARTUP;
+  private final char[] line = new char[MAX_BUFFER_SIZE];
+  private int lineLength;
+  private String pendingLine;
+  private final BinaryCodec.Decoder decoder = new BinaryCodec.Decoder();
+  private boolean binaryMode;
+  private int expectedSeq;
+  private boolean resync;
+  private boolean sequenced;  // a sequenced line was seen
+  private char queueOp;
+  private int queueX, queueY, queueSeq;
+  private int currentX = Polargraph.START_X;
+  private int currentY = Polargraph.START_Y;
+  private long waitStart = -1;  // -1 if not waiting for a free slot
+
+  // stepper state machine, done ticks of the commands in the ring
+  private final long[] ringDone = new long[MAX_COMMANDS];
+  private int ringHead;
+  private int ringSize;
+  private long lastDoneTick = -1;
+  private int stepsM1 = Polargraph.stepsM1(Polargraph.START_X, Polargraph.START_Y);
+  private int stepsM2 = Polargraph.stepsM2(Polargraph.START_X, Polargraph.START_Y);
+  private boolean penDown;
+
+  // statistics
+  private long bytesToDevice;
+  private long bytesFromDevice;
+  private int droppedBytes;
+  private int corruptedBytes;
+  private int commands;
+  private int rejects;
+  private int waits;
+  private long starvedTicks;
+  private boolean moving;
+
+  /**
+   * Creates a simulator of the current firmware at 57600 baud
+   */
+  public FirmwareSimulator() {
+    this(57600, 0, true);
+  }
+
+  /**
+   * Creates a new simulator
+   *
+   * @param baudRate
+   *            Serial speed, 10 bits per byte
+   * @param latencyMicros
+   *            One way latency of the link, e.g. of an USB serial adapter
+   * @param sequencing
+   *            False to simulate the firmware before sequenced and binary
+   *            commands
+   */
+  public FirmwareSimulator(int baudRate, long latencyMicros, boolean sequencing) {
+    this.byteMicros = (10000000L + baudRate - 1) / baudRate;
+    this.latencyMicros = latencyMicros;
+    this.sequencing = sequencing;
+  }
+
+  /**
+   * Set the time loop() needs per command
+   *
+   * @param lineMicros
+   *            Reading and parsing an ASCII line
+   * @param frameMicros
+   *            Decoding a binary frame
+   * @param queueMicros
+   *            queueCommand(): clamping, computeA/B and step conversion
+   * @param stepMicros
+   *            queueCommand() of a step target computed by the host
+   */
+  public void setCpuCosts(long lineMicros, long frameMicros, long queueMicros, long stepMicros) {
+    this.lineMicros = lineMicros;
+    this.frameMicros = frameMicros;
+    this.queueMicros = queueMicros;
+    this.stepMicros = stepMicros;
+  }
+
+  /**
+   * Let the link flip a random bit in some of the bytes sent to the device
+   *
+   * @param errorRate
+   *            Probability per byte, 0 for a perfect link
+   * @param seed
+   *            Seed of the random generator, for reproducible runs
+   */
+  public void setErrorRate(double errorRate, long seed) {
+    this.errorRate = errorRate;
+    this.random = new Random(seed);
+  }
+
+  public int available() {
+    int n = 0;
+    for (int i = 0; i < outbound.size() && outbound.time(i) <= now; i++) {
+      n++;
+    }
+    return n;
+  }
+
+  public int read() {
+    if (outbound.size() == 0 || outbound.time(0) > now) {
+      return -1;
+    }
+    return outbound.poll() & 0xFF;
+  }
+
+  public void write(byte[] buf, int off, int len) {
+    for (int i = off; i < off + len; i++) {
+      byte b = buf[i];
+      if (errorRate > 0 && random.nextDouble() < errorRate) {
+        b ^= 1 << random.nextInt(8);
+        corruptedBytes++;
+      }
+      inboundFree = Math.max(now, inboundFree) + byteMicros;
+      inbound.add(inboundFree + latencyMicros, b);
+      bytesToDevice++;
+    }
+  }
+
+  public long millis() {
+    return now / 1000;
+  }
+
+  /**
+   * Advances the virtual time to the next event: a byte reaching the host or
+   * the firmware being able to continue
+   *
+   * @return False if nothing will ever happen without further input
+   */
+  public boolean advance() {
+    long next = nextDeviceEvent();
+    for (int i = 0; i < outbound.size(); i++) {
+      if (outbound.time(i) > now) {
+        next = Math.min(next, outbound.time(i));
+        break;
+      }
+    }
+    if (next == Long.MAX_VALUE) {
+      return false;
+    }
+    now = next;
+    runDevice(now);
+    return true;
+  }
+
+  /**
+   * Lets time pass without any event, e.g. to run into a host timeout
+   *
+   * @param micros
+   *            Time to skip
+   */
+  public void skip(long micros) {
+    now += micros;
+    runDevice(now);
+  }
+
+  private long nextDeviceEvent() {
+    switch (cpuState) {
+    case CPU_READ:
+      if (rx.size() > 0) {
+        return cpuTime;
+      }
+      if (inbound.size() > 0) {
+        return Math.max(cpuTime, inbound.time(0));
+      }
+      return Long.MAX_VALUE;
+    case CPU_EXEC:
+      return cpuTime;
+    }
+    return Long.MAX_VALUE;
+  }
+
+  /**
+   * Runs loop() up to the given time
+   */
+  private void runDevice(long until) {
+    while (cpuTime <= until) {
+      if (cpuState == CPU_READ) {
+        receive(cpuTime);
+        if (rx.size() == 0) {
+          if (inbound.size() == 0 || inbound.time(0) > until) {
+            // idle, continues reading when the next byte arrives
+            cpuTime = until;
+            return;
+          }
+          cpuTime = Math.max(cpuTime, inbound.time(0));
+          continue;
+        }
+        readByte(rx.poll() & 0xFF);
+      }
+      else if (cpuState == CPU_EXEC) {
+        execute();
+      }
+      else {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Moves bytes that arrived until the given time into the receive buffer
+   */
+  private void receive(long t) {
+    while (inbound.size() > 0 && inbound.time(0) <= t) {
+      byte b = inbound.poll();
+      if (rx.size() < RX_BUFFER) {
+        rx.add(t, b);
+      }
+      else {
+        droppedBytes++;
+      }
+    }
+  }
+
+  /**
+   * One byte of readLine() or readFrame()
+   */
+  private void readByte(int c) {
+    if (binaryMode) {
+      int r = decoder.feed(c);
+      if (r == BinaryCodec.Decoder.FRAME) {
+        action = ACTION_FRAME;
+        cpuState = CPU_EXEC;
+        cpuTime += frameMicros;
+      }
+      else if (r == BinaryCodec.Decoder.ERROR) {
+        reject();
+      }
+      return;
+    }
+    boolean end = (c == '\r') || (c == '\n');
+    if (!end) {
+      line[lineLength++] = (char) c;
+    }
+    if (end || lineLength == MAX_BUFFER_SIZE - 1) {
+      pendingLine = new String(line, 0, lineLength);
+      lineLength = 0;
+      action = ACTION_LINE;
+      cpuState = CPU_EXEC;
+      cpuTime += lineMicros;
+    }
+  }
+
+  private void execute() {
+    switch (action) {
+    case ACTION_STARTUP:
+      println("#start up");
+      println("#start steps: " + stepsM1 + " " + stepsM2);
+      if (sequencing) {
+        println(BinaryCodec.PROTOCOL_BANNER);
+        println(StepTargets.STEPS_BANNER);
+      }
+      println("OK");
+      cpuState = CPU_READ;
+      break;
+    case ACTION_LINE:
+      cpuState = CPU_READ;
+      parseLine(pendingLine);
+      break;
+    case ACTION_FRAME:
+      cpuState = CPU_READ;
+      if (checkSeq(decoder.seq)) {
+        queue(decoder.op, decoder.x, decoder.y, decoder.seq);
+      }
+      break;
+    case ACTION_QUEUE:
+      queueCommand();
+      break;
+    }
+  }
+
+  private void parseLine(String s) {
+    int seq = -1;
+    if (sequencing && s.startsWith("N")) {
+      int star = s.indexOf('*');
+      if (star < 0) {
+        reject();
+        return;
+      }
+      int sum = 0;
+      for (int i = 0; i < star; i++) {
+        sum ^= s.charAt(i);
+      }
+      if ((sum & 0xFF) != (atol(s.substring(star + 1)) & 0xFF)) {
+        reject();
+        return;
+      }
+      sequenced = true;
+      s = s.substring(0, star);
+      seq = (int) atol(s.substring(1)) & 0xFF;
+      int space = s.indexOf(' ');
+      if (space < 0) {
+        reject();
+        return;
+      }
+      s = s.substring(space + 1);
+      if (!checkSeq(seq)) {
+        return;
+      }
+    }
+    else if (sequenced) {
+      // garbled, or left overs of a rejected window
+      reject();
+      return;
+    }
+    else if (resync) {
+      return;
+    }
+
+    char c = (s.length() > 0) ? s.charAt(0) : '\0';
+    if (c == BinaryCodec.SWITCH_COMMAND && seq >= 0) {
+      binaryMode = true;
+      decoder.reset();
+      expectedSeq = (expectedSeq + 1) & 0xFF;
+      resync = false;
+      println("OK " + seq);
+      return;
+    }
+    if (!sequencing && (c == 'U' || c == 'D' || c == 'u' || c == 'd')) {
+      // the old firmware knows no step commands
+      halt(c);
+      return;
+    }
+    switch (c) {
+    case 'U':
+    case 'D':
+    case 'u':
+    case 'd':
+    case 'm':
+    case 'l':
+    case 'M':
+    case 'L':
+      String[] tokens = (s.length() > 2) ? s.substring(2).trim().split(" +") : new String[0];
+      queue(c, (int) atol(tokens.length > 0 ? tokens[0] : ""),
+          (int) atol(tokens.length > 1 ? tokens[1] : ""), seq);
+      return;
+    case 'O':
+    case 'o':
+      queue(c, 0, 0, seq);
+      return;
+    default:
+      if (seq >= 0) {
+        reject();
+        return;
+      }
+      halt(c);
+    }
+  }
+
+  private void halt(char c) {
+    println("#unknown command: " + c);
+    println("errored, stopped!");
+    cpuState = CPU_HALTED;
+  }
+
+  private void queue(char op, int x, int y, int seq) {
+    queueOp = op;
+    queueX = x;
+    queueY = y;
+    queueSeq = seq;
+    action = ACTION_QUEUE;
+    cpuState = CPU_EXEC;
+  }
+
+  /**
+   * queueCommand() followed by the acknowledgement
+   */
+  private void queueCommand() {
+    long tick = (cpuTime + Polargraph.TICK_MICROS - 1) / Polargraph.TICK_MICROS;
+    while (ringSize > 0 && ringDone[ringHead] < tick) {
+      ringHead = (ringHead + 1) % MAX_COMMANDS;
+      ringSize--;
+    }
+    if (ringSize == MAX_COMMANDS - 1) {
+      if (!sequencing) {
+        cpuTime += WAIT_MICROS;
+        println("#waiting ...");
+        waits++;
+        return;
+      }
+      if (waitStart < 0) {
+        waitStart = cpuTime;
+      }
+      cpuTime += WAIT_POLL_MICROS;
+      if (cpuTime - waitStart >= WAIT_MICROS) {
+        println("#waiting ...");
+        waits++;
+        waitStart = cpuTime;
+      }
+      return;
+    }
+    waitStart = -1;
+
+    int x = queueX;
+    int y = queueY;
+    if (queueOp == 'u' || queueOp == 'd') {
+      x += stepsM1;
+      y += stepsM2;
+    }
+    switch (queueOp) {
+    case 'u':
+    case 'd':
+    case 'U':
+    case 'D':
+      if (!binaryMode) {
+        println("#cmd: " + queueOp + ", m1:" + x + ", m2:" + y);
+      }
+      cpuTime += stepMicros;
+      schedule((queueOp == 'U' || queueOp == 'u') ? 'M' : 'L', x, y);
+      acknowledge();
+      return;
+    case 'm':
+    case 'l':
+      x += currentX;
+      y += currentY;
+      break;
+    case 'O':
+    case 'o':
+      x = currentX;
+      y = currentY;
+      break;
+    }
+    x = Polargraph.clampX(x);
+    y = Polargraph.clampY(y);
+    if (!binaryMode) {
+      println("#cmd: " + queueOp + ", x:" + x + ", y:" + y);
+    }
+    cpuTime += queueMicros;
+    currentX = x;
+    currentY = y;
+    schedule(queueOp, Polargraph.stepsM1(x, y), Polargraph.stepsM2(x, y));
+    acknowledge();
+  }
+
+  private void acknowledge() {
+    commands++;
+    if (queueSeq >= 0) {
+      expectedSeq = (expectedSeq + 1) & 0xFF;
+      resync = false;
+      println("OK " + queueSeq);
+    }
+    else {
+      println("OK");
+    }
+    cpuState = CPU_READ;
+  }
+
+  /**
+   * Computes when the stepper state machine finishes a new command
+   */
+  private void schedule(char op, int t1, int t2) {
+    long tick = (cpuTime + Polargraph.TICK_MICROS - 1) / Polargraph.TICK_MICROS;
+    long start = Math.max(tick, lastDoneTick + 1);
+    if (moving && start > lastDoneTick + 1) {
+      starvedTicks += start - lastDoneTick - 1;
+    }
+    long done = start;
+    if (op != 'O' && op != 'o') {
+      boolean down = (op == 'L' || op == 'l');
+      if (down != penDown) {
+        penDown = down;
+        done += Polargraph.servoTicks();
+      }
+      int steps = Math.max(Math.abs(t1 - stepsM1), Math.abs(t2 - stepsM2));
+      done += Polargraph.moveTicks(steps) - 1;
+      stepsM1 = t1;
+      stepsM2 = t2;
+    }
+    moving = true;
+    lastDoneTick = done;
+    ringDone[(ringHead + ringSize) % MAX_COMMANDS] = done;
+    ringSize++;
+  }
+
+  private boolean checkSeq(int seq) {
+    if (seq == expectedSeq) {
+      return true;
+    }
+    if (((expectedSeq - seq) & 0xFF) <= SEQ_WINDOW) {
+      println("OK " + seq);
+    }
+    else {
+      reject();
+    }
+    return false;
+  }
+
+  private void reject() {
+    if (!resync) {
+      println("RS " + expectedSeq);
+      resync = true;
+      rejects++;
+    }
+    binaryMode = false;
+    decoder.reset();
+  }
+
+  private static long atol(String s) {
+    int i = 0;
+    while (i < s.length() && s.charAt(i) == ' ') {
+      i++;
+    }
+    boolean negative = false;
+    if (i < s.length() && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+      negative = s.charAt(i) == '-';
+      i++;
+    }
+    long v = 0;
+    while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+      v = v * 10 + (s.charAt(i++) - '0');
+    }
+    return negative ? -v : v;
+  }
+
+  /**
+   * Serial.println(), blocks while the transmit buffer is full
+   */
+  private void println(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      transmit((byte) s.charAt(i));
+    }
+    transmit((byte) '\r');
+    transmit((byte) '\n');
+  }
+
+  private void transmit(byte b) {
+    long departure = Math.max(cpuTime, txFree) + byteMicros;
+    long blockedUntil = departure - TX_BUFFER * byteMicros;
+    if (blockedUntil > cpuTime) {
+      cpuTime = blockedUntil;
+    }
+    txFree = departure;
+    outbound.add(departure + latencyMicros, b);
+    bytesFromDevice++;
+  }
+
+  /**
+   * Returns the virtual time
+   *
+   * @return Microseconds since power up
+   */
+  public long getTime() {
+    return now;
+  }
+
+  /**
+   * Returns when the pen stops after the last queued command
+   *
+   * @return Microseconds since power up, 0 if nothing was queued
+   */
+  public long getMotionEnd() {
+    return moving ? (lastDoneTick + 1) * Polargraph.TICK_MICROS : 0;
+  }
+
+  /**
+   * Returns how long the motors stood still between the first and the last
+   * command because the next command had not been queued yet
+   *
+   * @return Microseconds
+   */
+  public long getStarvedTime() {
+    return starvedTicks * Polargraph.TICK_MICROS;
+  }
+
+  public long getBytesToDevice() {
+    return bytesToDevice;
+  }
+
+  public long getBytesFromDevice() {
+    return bytesFromDevice;
+  }
+
+  /**
+   * Returns the number of bytes lost because the receive buffer was full
+   *
+   * @return Number of bytes
+   */
+  public int getDroppedBytes() {
+    return droppedBytes;
+  }
+
+  public int getCorruptedBytes() {
+    return corruptedBytes;
+  }
+
+  /**
+   * Returns the number of commands put into the command ring
+   *
+   * @return Number of commands
+   */
+  public int getCommands() {
+    return commands;
+  }
+
+  public int getRejects() {
+    return rejects;
+  }
+
+  /**
+   * Returns how often the firmware printed "#waiting ..."
+   *
+   * @return Number of waits
+   */
+  public int getWaits() {
+    return waits;
+  }
+
+  /**
+   * Returns true if the firmware stopped after an unknown command
+   *
+   * @return True if halted
+   */
+  public boolean isHalted() {
+    return cpuState == CPU_HALTED;
+  }
+
+  /**
+   * Sends a job through the Kritzler until it is finished, driving both on
+   * virtual time. The Kritzler must not have been started.
+   *
+   * @param kritzler
+   *            Kritzler talking to this simulator
+   * @param instructions
+   *            Job to send
+   * @return True if the job was finished
+   */
+  public boolean simulate(Kritzler kritzler, InstructionSource instructions) {
+    kritzler.setInstructions(instructions);
+    long idle = 0;
+    while (!kritzler.isFinished() && !isHalted()) {
+      while (kritzler.poll()) {
+      }
+      if (advance()) {
+        idle = 0;
+      }
+      else {
+        // waiting for a host timeout
+        if (idle > 60000000) {
+          return false;
+        }
+        skip(100000);
+        idle += 100000;
+      }
+    }
+    return kritzler.isFinished();
+  }
+
+  /**
+   * Hatches a square with lines cut into short segments, like the fill
+   * patterns of the sketch
+   */
+  private static InstructionBuffer hatch(int size, int spacing, int segment) {
+    InstructionBuffer instructions = new InstructionBuffer();
+    for (int y = 0, n = 0; y <= size; y += spacing, n++) {
+      int from = (n % 2 == 0) ? 0 : size;
+      int dir = (n % 2 == 0) ? 1 : -1;
+      instructions.add(Instruction.MOVE_ABS, from, y);
+      for (int d = segment; d <= size; d += segment) {
+        instructions.add(Instruction.LINE_ABS, from + dir * d, y);
+      }
+    }
+    return instructions;
+  }
+
+  // benchmark runs that were slower than their limit or did not finish
+  private static int regressions;
+
+  private static void benchmark(String name, InstructionSource job, int baudRate,
+      long latency, boolean sequencing, boolean binary, boolean steps, int window,
+      long maxMillis) {
+    benchmark(name, job, baudRate, latency, sequencing, binary, steps, window, 0, 0, maxMillis);
+  }
+
+  /**
+   * Runs a job over a link that corrupts bytes. Besides being in time, the
+   * run has to put every command of the job into the ring exactly once.
+   */
+  private static void benchmark(String name, InstructionSource job, int baudRate,
+      long latency, boolean sequencing, boolean binary, boolean steps, int window,
+      double errorRate, long seed, long maxMillis) {
+    FirmwareSimulator sim = new FirmwareSimulator(baudRate, latency, sequencing);
+    sim.setErrorRate(errorRate, seed);
+    Kritzler kritzler = new Kritzler(sim);
+    kritzler.translate(5500, 5500);
+    kritzler.setScale(1);
+    kritzler.setBinary(binary);
+    kritzler.setHostKinematics(steps);
+    kritzler.setWindow(window);
+    long start = STARTUP_MICROS;
+    boolean done = sim.simulate(kritzler, job);
+    long total = sim.getMotionEnd() - start;
+    boolean complete = errorRate == 0 || sim.getCommands() == job.size();
+    boolean regressed = !done || !complete || total / 1000 > maxMillis;
+    if (regressed) {
+      regressions++;
+    }
+    System.out.println(name + ": " + (done ? "" : "NOT FINISHED, ")
+        + (complete ? "" : "WRONG COMMAND COUNT, ")
+        + sim.getCommands() + " commands in " + (total / 1000) + " ms"
+        + (regressed ? " (REGRESSION, limit " + maxMillis + " ms), " : ", ")
+        + (sim.getCommands() * 1000000L / Math.max(1, total)) + " cmd/s, starved "
+        + (sim.getStarvedTime() / 1000) + " ms, " + sim.getBytesToDevice() + " bytes sent, "
+        + sim.getDroppedBytes() + " dropped, " + sim.getWaits() + " waits"
+        + ((errorRate > 0) ? ", " + sim.getCorruptedBytes() + " corrupted, "
+            + sim.getRejects() + " rejects, " + kritzler.getResent() + " resent" : ""));
+  }
+
+  /**
+   * Compares the throughput of the protocols on synthetic hatch jobs. Every
+   * run has a limit for the time the job takes, about 5% above what it
+   * takes now, which leaves room for changes to the timing model. Runs over
+   * a link that corrupts bytes also have to queue every command once. The
+   * runs are deterministic, so a run that fails is a regression and the
+   * exit status is 1.
+   */
+  public static void main(String[] args) {
+    InstructionBuffer job = hatch(3000, 20, 30);
+    System.out.println("hatch job with " + job.size() + " instructions");
+    benchmark("old firmware, stop and wait", job, 57600, 0, false, false, false, 1, 1865000);
+    benchmark("old firmware, window 4", job, 57600, 0, false, false, false, 0, 1974000);
+    benchmark("sequenced ASCII", job, 57600, 0, true, false, false, 0, 915000);
+    benchmark("binary", job, 57600, 0, true, true, false, 0, 915000);
+    benchmark("binary, step targets", job, 57600, 0, true, true, true, 0, 915000);
+    benchmark("binary, 4 ms USB latency", job, 57600, 4000, true, true, false, 0, 915000);
+    try {
+      File f = File.createTempFile("hatch", KriFile.EXTENSION);
+      f.deleteOnExit();
+      KriFile.write(f, job);
+      benchmark("binary, mapped from " + KriFile.EXTENSION, KriFile.open(f), 57600, 0, true,
+          true, false, 0, 915000);
+    }
+    catch (IOException e) {
+      System.out.println("no " + KriFile.EXTENSION + " file: " + e.getMessage());
+    }
+
+    // short segments, limited by the round trip rather than the motors
+    InstructionBuffer fine = hatch(600, 20, 2);
+    System.out.println("fine hatch job with " + fine.size() + " instructions");
+    benchmark("sequenced ASCII, stop and wait", fine, 57600, 0, true, false, false, 1, 122000);
+    benchmark("sequenced ASCII", fine, 57600, 0, true, false, false, 0, 94000);
+    benchmark("binary, 4 ms USB latency, stop and wait", fine, 57600, 4000, true, true, false,
+        1, 143000);
+    benchmark("binary, 4 ms USB latency", fine, 57600, 4000, true, true, false, 0, 78000);
+
+    // a link that flips bits, garbled commands have to be sent again and
+    // must never be run or stop the firmware
+    benchmark("sequenced ASCII, 1e-3 errors", fine, 57600, 0, true, false, false, 0, 1e-3, 1,
+        99500);
+    benchmark("step targets, 1e-3 errors", fine, 57600, 0, true, false, true, 0, 1e-3, 1, 104000);
+    benchmark("binary, 5e-3 errors", fine, 57600, 0, true, true, false, 0, 5e-3, 1, 169600);
+
+    if (regressions > 0) {
+      System.out.println(regressions + " runs unfinished, wrong or slower than their limit");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Growable FIFO of bytes with a time stamp each
+   */
+  private static class ByteFifo {
+
+    private long[] times = new long[64];
+    private byte[] data = new byte[64];
+    private int head;
+    private int size;
+
+    int size() {
+      return size;
+    }
+
+    long time(int i) {
+      return times[(head + i) % times.length];
+    }
+
+    void add(long time, byte b) {
+      if (size == times.length) {
+        long[] t = new long[size * 2];
+        byte[] d = new byte[size * 2];
+        for (int i = 0; i < size; i++) {
+          t[i] = times[(head + i) % times.length];
+          d[i] = data[(head + i) % data.length];
+        }
+        times = t;
+        data = d;
+        head = 0;
+      }
+      int i = (head + size) % times.length;
+      times[i] = time;
+      data[i] = b;
+      size++;
+    }
+
+    byte poll() {
+      byte b = data[head];
+      head = (head + 1) % times.length;
+      size--;
+      return b;
+    }
+  }
+
+}
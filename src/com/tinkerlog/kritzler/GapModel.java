@@ -0,0 +1,104 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * Decides which gaps between paths the pen is dragged across instead of
+ * lifted, and what a gap costs. A gap up to the join tolerance is always
+ * drawn through, a gap up to the bridge distance only if it stays inside the
+ * mask, every other gap lifts the pen. The path order prices gaps and the
+ * encoder draws them with the same instance, so the order is optimized for
+ * the pen lifts that are actually made.
+ * <p>
+ * Queries use the scratch space of the mask, a model is used by one thread
+ * at a time, see share().
+ */
+public class GapModel {
+
+  private static final int CACHE_SIZE = 1 << 16;
+
+  private final float tolerance;
+  private final float bridge;
+  private final float lift;
+  private final ShapeMask mask;
+
+  // the last mask test of every slot, the ordering asks about the same
+  // gaps over and over
+  private final float[] tested = new float[4 * CACHE_SIZE];
+  private final boolean[] inside = new boolean[CACHE_SIZE];
+
+  /**
+   * Creates a model
+   *
+   * @param tolerance
+   *            Longest gap always drawn through
+   * @param bridge
+   *            Longest gap drawn through inside the mask
+   * @param lift
+   *            Cost of a pen lift, as distance
+   * @param mask
+   *            Area gaps may be drawn through, null for none
+   */
+  public GapModel(float tolerance, float bridge, float lift, ShapeMask mask) {
+    this.tolerance = tolerance;
+    this.bridge = bridge;
+    this.lift = lift;
+    this.mask = mask;
+  }
+
+  /**
+   * Tests whether the pen stays down across the gap from (x1, y1) to (x2,
+   * y2)
+   *
+   * @return True if the gap is drawn through
+   */
+  public boolean isDrawn(float x1, float y1, float x2, float y2) {
+    float dx = x2 - x1;
+    float dy = y2 - y1;
+    return isDrawn(x1, y1, x2, y2, Math.sqrt(dx * dx + dy * dy));
+  }
+
+  private boolean isDrawn(float x1, float y1, float x2, float y2, double d) {
+    if (d <= tolerance) {
+      return true;
+    }
+    if (d > bridge || mask == null) {
+      return false;
+    }
+    int h = Float.floatToIntBits(x1) * 31 + Float.floatToIntBits(y1);
+    h = (h * 31 + Float.floatToIntBits(x2)) * 31 + Float.floatToIntBits(y2);
+    int slot = (h ^ (h >>> 16)) & (CACHE_SIZE - 1);
+    int k = 4 * slot;
+    if (tested[k] != x1 || tested[k + 1] != y1 || tested[k + 2] != x2
+        || tested[k + 3] != y2) {
+      tested[k] = x1;
+      tested[k + 1] = y1;
+      tested[k + 2] = x2;
+      tested[k + 3] = y2;
+      inside[slot] = mask.contains(x1, y1, x2, y2);
+    }
+    return inside[slot];
+  }
+
+  /**
+   * Returns the cost of the gap from (x1, y1) to (x2, y2): its length, plus
+   * the lift penalty unless it is drawn through. The cost is never less
+   * than the length.
+   *
+   * @return Cost as distance
+   */
+  public double cost(float x1, float y1, float x2, float y2) {
+    float dx = x2 - x1;
+    float dy = y2 - y1;
+    double d = Math.sqrt(dx * dx + dy * dy);
+    return isDrawn(x1, y1, x2, y2, d) ? d : d + lift;
+  }
+
+  /**
+   * Returns a model with the same rules for use by another thread
+   *
+   * @return The model
+   */
+  public GapModel share() {
+    return (mask == null) ? this : new GapModel(tolerance, bridge, lift, mask.share());
+  }
+
+}
@@ -0,0 +1,155 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * Cells of a uniform grid that a segment passes through, found by walking
+ * from cell border to cell border. Where the segment passes exactly through
+ * a corner, both cells beside the corner are taken as well. Cell (cx, cy)
+ * covers origin + cx * cell up to origin + (cx + 1) * cell. The cells are
+ * collected into arrays that are reused from walk to walk.
+ */
+public class GridWalk {
+
+  private final float originX;
+  private final float originY;
+  private final float cell;
+
+  private int[] cellX = new int[64];
+  private int[] cellY = new int[64];
+  private int size;
+
+  /**
+   * Creates a walk over a grid
+   *
+   * @param originX
+   *            X of the corner of cell (0, 0)
+   * @param originY
+   *            Y of the corner of cell (0, 0)
+   * @param cell
+   *            Width and height of a cell
+   */
+  public GridWalk(float originX, float originY, float cell) {
+    this.originX = originX;
+    this.originY = originY;
+    this.cell = cell;
+  }
+
+  /**
+   * Creates a walk over the same grid as another one, with its own arrays
+   *
+   * @param grid
+   *            Walk to take the grid from
+   */
+  public GridWalk(GridWalk grid) {
+    this(grid.originX, grid.originY, grid.cell);
+  }
+
+  /**
+   * Returns the column of an x coordinate
+   */
+  public int cellX(float x) {
+    return (int) Math.floor((x - originX) / cell);
+  }
+
+  /**
+   * Returns the row of a y coordinate
+   */
+  public int cellY(float y) {
+    return (int) Math.floor((y - originY) / cell);
+  }
+
+  /**
+   * Collects the cells the segment a..b passes through, replacing the
+   * cells collected before
+   */
+  public void walk(float ax, float ay, float bx, float by) {
+    size = 0;
+    int cx = cellX(ax);
+    int cy = cellY(ay);
+    int endX = cellX(bx);
+    int endY = cellY(by);
+    int steps = Math.abs(endX - cx) + Math.abs(endY - cy);
+    float dx = bx - ax;
+    float dy = by - ay;
+    int sx = (dx > 0) ? 1 : -1;
+    int sy = (dy > 0) ? 1 : -1;
+    // segment parameter at the next vertical and horizontal cell border,
+    // and its step per cell
+    double nextX = (dx == 0) ? Double.POSITIVE_INFINITY
+        : (originX + ((sx > 0) ? cx + 1 : cx) * (double) cell - ax) / dx;
+    double nextY = (dy == 0) ? Double.POSITIVE_INFINITY
+        : (originY + ((sy > 0) ? cy + 1 : cy) * (double) cell - ay) / dy;
+    double deltaX = (dx == 0) ? Double.POSITIVE_INFINITY : cell / Math.abs((double) dx);
+    double deltaY = (dy == 0) ? Double.POSITIVE_INFINITY : cell / Math.abs((double) dy);
+    add(cx, cy);
+    for (int i = 0; i < steps; i++) {
+      if (nextX < nextY) {
+        cx += sx;
+        nextX += deltaX;
+      }
+      else if (nextY < nextX) {
+        cy += sy;
+        nextY += deltaY;
+      }
+      else {
+        add(cx + sx, cy);
+        add(cx, cy + sy);
+        cx += sx;
+        cy += sy;
+        nextX += deltaX;
+        nextY += deltaY;
+        i++;
+      }
+      add(cx, cy);
+    }
+    if (cx != endX || cy != endY) {
+      // rounding took a wrong turn at a border
+      add(endX, endY);
+    }
+  }
+
+  /**
+   * Forgets the collected cells
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Collects a cell
+   */
+  public void add(int cx, int cy) {
+    if (size == cellX.length) {
+      int[] x = new int[2 * size];
+      int[] y = new int[2 * size];
+      System.arraycopy(cellX, 0, x, 0, size);
+      System.arraycopy(cellY, 0, y, 0, size);
+      cellX = x;
+      cellY = y;
+    }
+    cellX[size] = cx;
+    cellY[size] = cy;
+    size++;
+  }
+
+  /**
+   * Returns the number of collected cells
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the column of a collected cell
+   */
+  public int getX(int i) {
+    return cellX[i];
+  }
+
+  /**
+   * Returns the row of a collected cell
+   */
+  public int getY(int i) {
+    return cellY[i];
+  }
+
+}
@@ -0,0 +1,235 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * Growable list of instructions, kept as parallel primitive arrays instead
+ * of Instruction objects: a job of a million points takes 9 MB instead of
+ * 28 MB, and loops over it read the arrays in order. The start of
+ * every path (each MOVE) is indexed as well.
+ * <p>
+ * slice() returns a view of a range that shares the arrays. Views are
+ * read-only, appending to the buffer they come from does not change them.
+ */
+public class InstructionBuffer implements InstructionSource {
+
+  private float[] xs;
+  private float[] ys;
+  private byte[] ops;
+  private int offset;
+  private int size;
+
+  // indices of the MOVE instructions, pathStarts[firstPath..lastPath)
+  // belong to this buffer
+  private int[] pathStarts;
+  private int firstPath;
+  private int lastPath;
+
+  private final boolean view;
+
+  /**
+   * Creates an empty buffer
+   */
+  public InstructionBuffer() {
+    this(1024);
+  }
+
+  /**
+   * Creates an empty buffer
+   *
+   * @param capacity
+   *            Number of instructions to make room for
+   */
+  public InstructionBuffer(int capacity) {
+    capacity = Math.max(capacity, 16);
+    xs = new float[capacity];
+    ys = new float[capacity];
+    ops = new byte[capacity];
+    pathStarts = new int[16];
+    view = false;
+  }
+
+  private InstructionBuffer(InstructionBuffer b, int from, int to) {
+    xs = b.xs;
+    ys = b.ys;
+    ops = b.ops;
+    offset = b.offset + from;
+    size = to - from;
+    pathStarts = b.pathStarts;
+    firstPath = b.firstPathAt(from);
+    lastPath = b.firstPathAt(to);
+    view = true;
+  }
+
+  /**
+   * Appends an instruction
+   *
+   * @param type
+   *            Instruction.MOVE_ABS etc.
+   * @param x
+   *            X coordinate
+   * @param y
+   *            Y coordinate
+   */
+  public void add(int type, float x, float y) {
+    if (view) {
+      throw new IllegalStateException("slices are read-only");
+    }
+    if (size == xs.length) {
+      int capacity = 2 * size;
+      float[] nx = new float[capacity];
+      float[] ny = new float[capacity];
+      byte[] no = new byte[capacity];
+      System.arraycopy(xs, 0, nx, 0, size);
+      System.arraycopy(ys, 0, ny, 0, size);
+      System.arraycopy(ops, 0, no, 0, size);
+      xs = nx;
+      ys = ny;
+      ops = no;
+    }
+    if (type == Instruction.MOVE_ABS || type == Instruction.MOVE_REL) {
+      if (lastPath == pathStarts.length) {
+        int[] p = new int[2 * lastPath];
+        System.arraycopy(pathStarts, 0, p, 0, lastPath);
+        pathStarts = p;
+      }
+      pathStarts[lastPath++] = size;
+    }
+    xs[size] = x;
+    ys[size] = y;
+    ops[size] = (byte) type;
+    size++;
+  }
+
+  /**
+   * Appends an instruction
+   *
+   * @param i
+   *            Instruction to copy
+   */
+  public void add(Instruction i) {
+    add(i.type, i.x, i.y);
+  }
+
+  /**
+   * Appends all instructions of another buffer
+   *
+   * @param b
+   *            Buffer to copy
+   */
+  public void addAll(InstructionBuffer b) {
+    for (int i = 0; i < b.size(); i++) {
+      add(b.getType(i), b.getX(i), b.getY(i));
+    }
+  }
+
+  /**
+   * Returns the number of instructions
+   *
+   * @return Number of instructions
+   */
+  public int size() {
+    return size;
+  }
+
+  public int getType(int i) {
+    return ops[offset + i];
+  }
+
+  public float getX(int i) {
+    return xs[offset + i];
+  }
+
+  public float getY(int i) {
+    return ys[offset + i];
+  }
+
+  /**
+   * Tells whether the pen is down while moving to an instruction's target
+   *
+   * @param i
+   *            Index of the instruction
+   * @return True for lines
+   */
+  public boolean isLine(int i) {
+    int type = ops[offset + i];
+    return type == Instruction.LINE_ABS || type == Instruction.LINE_REL;
+  }
+
+  /**
+   * Tells whether an instruction's coordinates are relative
+   *
+   * @param i
+   *            Index of the instruction
+   * @return True for relative moves and lines
+   */
+  public boolean isRelative(int i) {
+    int type = ops[offset + i];
+    return type == Instruction.MOVE_REL || type == Instruction.LINE_REL;
+  }
+
+  /**
+   * Returns an instruction as an object, for code that is not performance
+   * critical
+   *
+   * @param i
+   *            Index of the instruction
+   * @return A new Instruction
+   */
+  public Instruction get(int i) {
+    return new Instruction(getType(i), getX(i), getY(i));
+  }
+
+  /**
+   * Returns the number of paths, i.e. of MOVE instructions
+   *
+   * @return Number of paths
+   */
+  public int getPathCount() {
+    return lastPath - firstPath;
+  }
+
+  /**
+   * Returns the index of the MOVE that starts a path
+   *
+   * @param path
+   *            Index of the path
+   * @return Index of the instruction
+   */
+  public int getPathStart(int path) {
+    return pathStarts[firstPath + path] - offset;
+  }
+
+  /**
+   * Returns a read-only view of a range of instructions
+   *
+   * @param from
+   *            Index of the first instruction
+   * @param to
+   *            Index after the last instruction
+   * @return View sharing the arrays of this buffer
+   */
+  public InstructionBuffer slice(int from, int to) {
+    if (from < 0 || to > size || from > to) {
+      throw new IndexOutOfBoundsException(from + ".." + to + " of " + size);
+    }
+    return new InstructionBuffer(this, from, to);
+  }
+
+  /**
+   * Finds the first path starting at or after an index
+   */
+  private int firstPathAt(int i) {
+    int lo = firstPath;
+    int hi = lastPath;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (pathStarts[mid] - offset < i) {
+        lo = mid + 1;
+      }
+      else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+}
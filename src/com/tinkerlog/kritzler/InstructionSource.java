@@ -0,0 +1,47 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * Read access to the instructions of a job by index, implemented by the
+ * InstructionBuffer on the heap and by KriFile on a memory-mapped file.
+ */
+public interface InstructionSource {
+
+  /**
+   * Returns the number of instructions
+   * 
+   * @return Number of instructions
+   */
+  int size();
+
+  /**
+   * Returns the type of an instruction
+   * 
+   * @param i
+   *            Index of the instruction
+   * @return Instruction.MOVE_ABS etc.
+   */
+  int getType(int i);
+
+  float getX(int i);
+
+  float getY(int i);
+
+  /**
+   * Tells whether the pen is down while moving to an instruction's target
+   * 
+   * @param i
+   *            Index of the instruction
+   * @return True for lines
+   */
+  boolean isLine(int i);
+
+  /**
+   * Tells whether an instruction's coordinates are relative
+   * 
+   * @param i
+   *            Index of the instruction
+   * @return True for relative moves and lines
+   */
+  boolean isRelative(int i);
+
+}
@@ -0,0 +1,129 @@
+package com.tinkerlog.kritzler;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Compiled jobs on disk, so plotting the same shape with the same settings
+ * again skips the pipeline. Every job is a .kri file named after its key, a
+ * hash of everything the instructions depend on, see Plotter.getJobKey().
+ * A hit touches the file, and when the directory grows beyond its size the
+ * files used longest ago are deleted.
+ */
+public class JobCache {
+
+  private final File dir;
+  private final long maxBytes;
+
+  /**
+   * Opens a cache directory, creating it if needed
+   *
+   * @param dir
+   *            Directory of the .kri files
+   * @param maxBytes
+   *            Size the directory is trimmed to after every put()
+   */
+  public JobCache(File dir, long maxBytes) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    dir.mkdirs();
+  }
+
+  /**
+   * Looks up a job
+   *
+   * @param key
+   *            Key of the job
+   * @return The mapped instructions, null if the job is not cached
+   */
+  public KriFile get(long key) {
+    File f = file(key);
+    if (!f.exists()) {
+      return null;
+    }
+    try {
+      KriFile kri = KriFile.open(f);
+      f.setLastModified(System.currentTimeMillis());
+      return kri;
+    }
+    catch (IOException e) {
+      System.out.println("dropping cached job: " + e.getMessage());
+      f.delete();
+      return null;
+    }
+  }
+
+  /**
+   * Stores a job, replacing one with the same key, and evicts the least
+   * recently used jobs beyond the size of the cache
+   *
+   * @param key
+   *            Key of the job
+   * @param instructions
+   *            Instructions of the job
+   * @return The stored job, mapped from the cache
+   * @throws IOException
+   *             If the job cannot be written
+   */
+  public KriFile put(long key, InstructionSource instructions) throws IOException {
+    File f = file(key);
+    // written under another name first, a crash must not leave half a job
+    File tmp = new File(dir, f.getName() + ".tmp");
+    try {
+      KriFile.write(tmp, instructions);
+      f.delete();
+      if (!tmp.renameTo(f)) {
+        throw new IOException("cannot rename " + tmp + " to " + f);
+      }
+    }
+    finally {
+      tmp.delete();
+    }
+    evict(f);
+    return KriFile.open(f);
+  }
+
+  /**
+   * Deletes the least recently used files until the cache fits its size
+   *
+   * @param keep
+   *            File not to delete
+   */
+  private void evict(File keep) {
+    File[] files = dir.listFiles(new FileFilter() {
+      public boolean accept(File f) {
+        return f.isFile() && f.getName().endsWith(KriFile.EXTENSION);
+      }
+    });
+    if (files == null) {
+      return;
+    }
+    long total = 0;
+    for (int i = 0; i < files.length; i++) {
+      total += files[i].length();
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File a, File b) {
+        long d = a.lastModified() - b.lastModified();
+        return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+      }
+    });
+    for (int i = 0; i < files.length && total > maxBytes; i++) {
+      if (files[i].equals(keep)) {
+        continue;
+      }
+      long length = files[i].length();
+      if (files[i].delete()) {
+        total -= length;
+      }
+    }
+  }
+
+  private File file(long key) {
+    return new File(dir, Long.toHexString(key) + KriFile.EXTENSION);
+  }
+
+}
@@ -0,0 +1,234 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * Static 2-d tree over a fixed set of points that supports removal, for
+ * repeated nearest neighbour queries while points are used up. The tree is
+ * implicit: node of a range is its middle element, the left half holds the
+ * smaller coordinates on the split axis (x on even, y on odd depths). Every
+ * node counts the points still present below it, so empty subtrees are
+ * skipped.
+ */
+public class KdTree {
+
+  private final int[] tree;  // point ids in tree order
+  private final int[] pos;  // position of a point id in tree
+  private final float[] nodeX;  // coordinates in tree order, for locality
+  private final float[] nodeY;
+  private final int[] alive;  // points left in the subtree of a node
+  private final boolean[] removed;  // in tree order
+  private int size;
+
+  // state of the running query, the k best points sorted by distance
+  private float qx, qy;
+  private int[] best = new int[1];
+  private float[] bestDist = new float[1];
+  private int found;
+  private int wanted;
+
+  /**
+   * Builds the tree
+   *
+   * @param xs
+   *            X coordinates
+   * @param ys
+   *            Y coordinates
+   * @param n
+   *            Number of points
+   */
+  public KdTree(float[] xs, float[] ys, int n) {
+    tree = new int[n];
+    pos = new int[n];
+    nodeX = new float[n];
+    nodeY = new float[n];
+    alive = new int[n];
+    removed = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      tree[i] = i;
+    }
+    build(xs, ys, 0, n, 0);
+    for (int i = 0; i < n; i++) {
+      pos[tree[i]] = i;
+      nodeX[i] = xs[tree[i]];
+      nodeY[i] = ys[tree[i]];
+    }
+    size = n;
+  }
+
+  private void build(float[] xs, float[] ys, int lo, int hi, int depth) {
+    if (hi - lo <= 0) {
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    select(lo, hi - 1, mid, (depth & 1) == 0 ? xs : ys);
+    alive[mid] = hi - lo;
+    build(xs, ys, lo, mid, depth + 1);
+    build(xs, ys, mid + 1, hi, depth + 1);
+  }
+
+  /**
+   * Quickselect: puts the k-th smallest element of tree[lo..hi] at k
+   */
+  private void select(int lo, int hi, int k, float[] c) {
+    while (hi > lo) {
+      float pivot = c[tree[(lo + hi) >>> 1]];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (c[tree[i]] < pivot) {
+          i++;
+        }
+        while (c[tree[j]] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int t = tree[i];
+          tree[i] = tree[j];
+          tree[j] = t;
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        hi = j;
+      }
+      else if (k >= i) {
+        lo = i;
+      }
+      else {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the number of points not removed yet
+   *
+   * @return Number of points
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Removes a point
+   *
+   * @param id
+   *            Index of the point in the coordinate arrays
+   */
+  public void remove(int id) {
+    int target = pos[id];
+    if (removed[target]) {
+      return;
+    }
+    removed[target] = true;
+    size--;
+    int lo = 0;
+    int hi = tree.length;
+    while (true) {
+      int mid = (lo + hi) >>> 1;
+      alive[mid]--;
+      if (mid == target) {
+        return;
+      }
+      if (target < mid) {
+        hi = mid;
+      }
+      else {
+        lo = mid + 1;
+      }
+    }
+  }
+
+  /**
+   * Finds the point closest to the given position
+   *
+   * @param x
+   *            X coordinate
+   * @param y
+   *            Y coordinate
+   * @return Index of the point, -1 if all points were removed
+   */
+  public int nearest(float x, float y) {
+    query(x, y, 1);
+    return (found > 0) ? best[0] : -1;
+  }
+
+  /**
+   * Finds the k points closest to the given position
+   *
+   * @param x
+   *            X coordinate
+   * @param y
+   *            Y coordinate
+   * @param k
+   *            Number of points wanted
+   * @param result
+   *            Filled with the indices of the points, closest first
+   * @return Number of points found, less than k if not enough are left
+   */
+  public int nearest(float x, float y, int k, int[] result) {
+    query(x, y, k);
+    System.arraycopy(best, 0, result, 0, found);
+    return found;
+  }
+
+  private void query(float x, float y, int k) {
+    if (best.length < k) {
+      best = new int[k];
+      bestDist = new float[k];
+    }
+    qx = x;
+    qy = y;
+    found = 0;
+    wanted = k;
+    search(0, tree.length, 0);
+  }
+
+  private float limit() {
+    return (found < wanted) ? Float.POSITIVE_INFINITY : bestDist[wanted - 1];
+  }
+
+  private void offer(int id, float d) {
+    if (d >= limit()) {
+      return;
+    }
+    int i = (found < wanted) ? found++ : wanted - 1;
+    while (i > 0 && bestDist[i - 1] > d) {
+      best[i] = best[i - 1];
+      bestDist[i] = bestDist[i - 1];
+      i--;
+    }
+    best[i] = id;
+    bestDist[i] = d;
+  }
+
+  private void search(int lo, int hi, int depth) {
+    if (hi <= lo) {
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    if (alive[mid] == 0) {
+      return;
+    }
+    float dx = nodeX[mid] - qx;
+    float dy = nodeY[mid] - qy;
+    if (!removed[mid]) {
+      offer(tree[mid], dx * dx + dy * dy);
+    }
+    // the side of the query point first, the other one only if it can be closer
+    float delta = ((depth & 1) == 0) ? -dx : -dy;
+    if (delta < 0) {
+      search(lo, mid, depth + 1);
+      if (delta * delta < limit()) {
+        search(mid + 1, hi, depth + 1);
+      }
+    }
+    else {
+      search(mid + 1, hi, depth + 1);
+      if (delta * delta < limit()) {
+        search(lo, mid, depth + 1);
+      }
+    }
+  }
+
+}
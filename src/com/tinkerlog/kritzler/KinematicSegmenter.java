@@ -0,0 +1,100 @@
+package com.tinkerlog.kritzler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits lines where the plotter would visibly bow them. The firmware moves
+ * both motors proportionally from one target to the next, so the string
+ * lengths change linearly and the pen follows a curve. How far that curve
+ * strays from the straight line depends on where on the canvas the line is,
+ * so lines are split in halves until the deviation at every piece is within
+ * the tolerance, instead of at a fixed length.
+ */
+public final class KinematicSegmenter {
+
+  /** Pieces are not split below this length, in plotter units. */
+  private static final float MIN_LENGTH = 2.0F;
+
+  private KinematicSegmenter() {
+  }
+
+  /**
+   * Largest distance of the drawn curve from the straight line, sampled at a
+   * quarter, half and three quarters of the move
+   *
+   * @param x1
+   *            Start in plotter units
+   * @param y1
+   *            Start in plotter units
+   * @param x2
+   *            End in plotter units
+   * @param y2
+   *            End in plotter units
+   * @return Deviation in plotter units
+   */
+  public static float error(float x1, float y1, float x2, float y2) {
+    double d = Polargraph.AXIS_DISTANCE_X;
+    double a1 = Math.sqrt((double) x1 * x1 + (double) y1 * y1);
+    double b1 = Math.sqrt((d - x1) * (d - x1) + (double) y1 * y1);
+    double a2 = Math.sqrt((double) x2 * x2 + (double) y2 * y2);
+    double b2 = Math.sqrt((d - x2) * (d - x2) + (double) y2 * y2);
+    double dx = x2 - x1;
+    double dy = y2 - y1;
+    double length = Math.sqrt(dx * dx + dy * dy);
+    if (length == 0) {
+      return 0;
+    }
+    double max = 0;
+    for (int i = 1; i < 4; i++) {
+      double t = i / 4.0;
+      double a = a1 + t * (a2 - a1);
+      double b = b1 + t * (b2 - b1);
+      // intersection of the circles around both motors
+      double x = (a * a - b * b + d * d) / (2 * d);
+      double y = Math.sqrt(Math.max(0, a * a - x * x));
+      double e = Math.abs(dx * (y - y1) - dy * (x - x1)) / length;
+      max = Math.max(max, e);
+    }
+    return (float) max;
+  }
+
+  /**
+   * Splits a line until every piece is drawn within the tolerance
+   *
+   * @param x1
+   *            Start in plotter units
+   * @param y1
+   *            Start in plotter units
+   * @param x2
+   *            End in plotter units
+   * @param y2
+   *            End in plotter units
+   * @param tolerance
+   *            Largest deviation in plotter units
+   * @param out
+   *            Gets x and y of the intermediate points and the end point,
+   *            in order
+   */
+  public static void split(float x1, float y1, float x2, float y2, float tolerance,
+      List<float[]> out) {
+    // pieces still to check, the first one to draw on top
+    List<float[]> stack = new ArrayList<float[]>();
+    stack.add(new float[] { x1, y1, x2, y2 });
+    while (!stack.isEmpty()) {
+      float[] s = stack.remove(stack.size() - 1);
+      float dx = s[2] - s[0];
+      float dy = s[3] - s[1];
+      if (dx * dx + dy * dy < 4 * MIN_LENGTH * MIN_LENGTH
+          || error(s[0], s[1], s[2], s[3]) <= tolerance) {
+        out.add(new float[] { s[2], s[3] });
+        continue;
+      }
+      float mx = (s[0] + s[2]) / 2;
+      float my = (s[1] + s[3]) / 2;
+      stack.add(new float[] { mx, my, s[2], s[3] });
+      stack.add(new float[] { s[0], s[1], mx, my });
+    }
+  }
+
+}
@@ -0,0 +1,272 @@
+package com.tinkerlog.kritzler;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Compiled job on disk (.kri). The file is mapped read-only and the
+ * instructions are decoded from the mapping on access, so a job of millions
+ * of instructions is plotted without being loaded onto the heap, and the OS
+ * pages it in as the plot goes.
+ *
+ * Layout (big endian): a header of HEADER_SIZE bytes with magic, version,
+ * record size, fraction bits, number of instructions, number of paths,
+ * bounds (min x, min y, max x, max y as floats) and the content hash, see
+ * ProgressJournal.contentHash(). The records
+ * follow, one per instruction: the type as a byte, x and y as ints in fixed
+ * point with FRACTION_BITS fraction bits.
+ */
+public class KriFile implements InstructionSource {
+
+  public static final String EXTENSION = ".kri";
+
+  private static final int MAGIC = 0x4B524931;  // "KRI1"
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 64;
+  private static final int RECORD_SIZE = 9;
+  private static final int FRACTION_BITS = 8;
+  private static final float ONE = 1 << FRACTION_BITS;
+
+  private static final int POS_MAGIC = 0;
+  private static final int POS_VERSION = 4;
+  private static final int POS_RECORD_SIZE = 8;
+  private static final int POS_FRACTION_BITS = 12;
+  private static final int POS_COUNT = 16;
+  private static final int POS_PATHS = 20;
+  private static final int POS_MIN_X = 24;
+  private static final int POS_MIN_Y = 28;
+  private static final int POS_MAX_X = 32;
+  private static final int POS_MAX_Y = 36;
+  private static final int POS_HASH = 40;
+
+  // the whole file is one mapping, which is limited to 2 GB
+  private static final int MAX_COUNT = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+  private final MappedByteBuffer buf;
+  private final int count;
+
+  private KriFile(MappedByteBuffer buf) {
+    this.buf = buf;
+    count = buf.getInt(POS_COUNT);
+  }
+
+  /**
+   * Maps a file
+   *
+   * @param f
+   *            .kri file
+   * @return The mapped job
+   * @throws IOException
+   *             If the file cannot be read or is not a .kri file of this
+   *             version
+   */
+  public static KriFile open(File f) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(f, "r");
+    try {
+      long length = file.length();
+      if (length < HEADER_SIZE) {
+        throw new IOException(f + ": not a .kri file");
+      }
+      // the mapping stays valid after the file is closed
+      MappedByteBuffer buf = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+      if (buf.getInt(POS_MAGIC) != MAGIC) {
+        throw new IOException(f + ": not a .kri file");
+      }
+      if (buf.getInt(POS_VERSION) != VERSION || buf.getInt(POS_RECORD_SIZE) != RECORD_SIZE
+          || buf.getInt(POS_FRACTION_BITS) != FRACTION_BITS) {
+        throw new IOException(f + ": unsupported version " + buf.getInt(POS_VERSION));
+      }
+      int count = buf.getInt(POS_COUNT);
+      if (count < 0 || length != HEADER_SIZE + (long) count * RECORD_SIZE) {
+        throw new IOException(f + ": truncated, " + length + " bytes for " + count
+            + " instructions");
+      }
+      return new KriFile(buf);
+    }
+    finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Writes a job. Coordinates are rounded to 1 / 2^FRACTION_BITS.
+   *
+   * @param f
+   *            .kri file to create or overwrite
+   * @param src
+   *            Instructions of the job
+   * @throws IOException
+   *             If the file cannot be written
+   */
+  public static void write(File f, final InstructionSource src) throws IOException {
+    int count = src.size();
+    if (count > MAX_COUNT) {
+      throw new IllegalArgumentException(count + " instructions, at most " + MAX_COUNT);
+    }
+    int paths = 0;
+    float minX = Float.POSITIVE_INFINITY;
+    float minY = Float.POSITIVE_INFINITY;
+    float maxX = Float.NEGATIVE_INFINITY;
+    float maxY = Float.NEGATIVE_INFINITY;
+    for (int i = 0; i < count; i++) {
+      if (!src.isLine(i)) {
+        paths++;
+      }
+      if (src.isRelative(i)) {
+        continue;
+      }
+      minX = Math.min(minX, src.getX(i));
+      minY = Math.min(minY, src.getY(i));
+      maxX = Math.max(maxX, src.getX(i));
+      maxY = Math.max(maxY, src.getY(i));
+    }
+    // hash the values as they are read back
+    long hash = ProgressJournal.contentHash(new InstructionSource() {
+      public int size() {
+        return src.size();
+      }
+      public int getType(int i) {
+        return src.getType(i);
+      }
+      public float getX(int i) {
+        return toFixed(src.getX(i)) / ONE;
+      }
+      public float getY(int i) {
+        return toFixed(src.getY(i)) / ONE;
+      }
+      public boolean isLine(int i) {
+        return src.isLine(i);
+      }
+      public boolean isRelative(int i) {
+        return src.isRelative(i);
+      }
+    });
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(f), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(RECORD_SIZE);
+      out.writeInt(FRACTION_BITS);
+      out.writeInt(count);
+      out.writeInt(paths);
+      out.writeFloat(minX);
+      out.writeFloat(minY);
+      out.writeFloat(maxX);
+      out.writeFloat(maxY);
+      out.writeLong(hash);
+      for (int i = POS_HASH + 8; i < HEADER_SIZE; i++) {
+        out.writeByte(0);
+      }
+      for (int i = 0; i < count; i++) {
+        out.writeByte(src.getType(i));
+        out.writeInt(toFixed(src.getX(i)));
+        out.writeInt(toFixed(src.getY(i)));
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private static int toFixed(float v) {
+    float f = v * ONE;
+    if (!(Math.abs(f) < Integer.MAX_VALUE)) {
+      throw new IllegalArgumentException("coordinate out of range: " + v);
+    }
+    return Math.round(f);
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public int getType(int i) {
+    return buf.get(position(i));
+  }
+
+  public float getX(int i) {
+    return buf.getInt(position(i) + 1) / ONE;
+  }
+
+  public float getY(int i) {
+    return buf.getInt(position(i) + 5) / ONE;
+  }
+
+  public boolean isLine(int i) {
+    int type = getType(i);
+    return type == Instruction.LINE_ABS || type == Instruction.LINE_REL;
+  }
+
+  public boolean isRelative(int i) {
+    int type = getType(i);
+    return type == Instruction.MOVE_REL || type == Instruction.LINE_REL;
+  }
+
+  private int position(int i) {
+    if (i < 0 || i >= count) {
+      throw new IndexOutOfBoundsException(i + " of " + count);
+    }
+    return HEADER_SIZE + i * RECORD_SIZE;
+  }
+
+  /**
+   * Returns the number of paths, i.e. of MOVE instructions
+   *
+   * @return Number of paths
+   */
+  public int getPathCount() {
+    return buf.getInt(POS_PATHS);
+  }
+
+  /**
+   * Returns the bounds of the absolute coordinates
+   *
+   * @return min x, min y, max x, max y
+   */
+  public float[] getBounds() {
+    return new float[] { buf.getFloat(POS_MIN_X), buf.getFloat(POS_MIN_Y),
+        buf.getFloat(POS_MAX_X), buf.getFloat(POS_MAX_Y) };
+  }
+
+  /**
+   * Returns the content hash stored in the header
+   *
+   * @return ProgressJournal.contentHash() of the records
+   */
+  public long getHash() {
+    return buf.getLong(POS_HASH);
+  }
+
+  /**
+   * Checks the records against the hash in the header. Reads the whole
+   * file.
+   *
+   * @return True if the records are intact
+   */
+  public boolean verify() {
+    return ProgressJournal.contentHash(this) == getHash();
+  }
+
+  /**
+   * Prints the header of .kri files and checks their records
+   */
+  public static void main(String[] args) throws IOException {
+    for (int i = 0; i < args.length; i++) {
+      KriFile kri = open(new File(args[i]));
+      float[] b = kri.getBounds();
+      System.out.println(args[i] + ": " + kri.size() + " instructions, "
+          + kri.getPathCount() + " paths, bounds " + b[0] + "," + b[1] + " - " + b[2] + ","
+          + b[3] + ", hash " + Long.toHexString(kri.getHash())
+          + (kri.verify() ? ", ok" : ", CORRUPT"));
+    }
+  }
+
+}
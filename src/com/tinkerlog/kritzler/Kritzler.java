@@ -1,23 +1,129 @@
 package com.tinkerlog.kritzler;
 
-import java.util.List;
+import java.io.IOException;
 
 import processing.core.PApplet;
 import processing.serial.Serial;
 
 public class Kritzler {
 
-  private Serial port;
-  private List<Instruction> instructions;
-  private int currentInst;
-  private StringBuilder buf = new StringBuilder();
+  /**
+   * Default number of commands kept in flight. The firmware does not read
+   * from the serial line while its command ring is full, so everything in
+   * flight has to fit into the 64 byte receive buffer of the AVR. The longest
+   * command ("L 11000 12000\r") is 14 bytes long.
+   */
+  public static final int DEFAULT_WINDOW = 4;
+
+  /**
+   * Window used with sequenced ASCII commands, which are up to 23 bytes long
+   * ("N255 L 11000 12000*255\r").
+   */
+  public static final int SEQUENCED_WINDOW = 2;
+
+  /**
+   * Window used with binary frames. Coordinates within the reachable area
+   * take at most 10 bytes per frame.
+   */
+  public static final int BINARY_WINDOW = 6;
+
+  /** Upper limit for setWindow(), size of the retransmit ring. */
+  public static final int MAX_WINDOW = 16;
+
+  /**
+   * Sequenced commands still unacknowledged after this long without any
+   * message from the firmware, and without sending anything, are sent
+   * again. The firmware prints
+   * "#waiting ..." every second while it waits for a free slot in its
+   * command ring.
+   */
+  private static final long RESEND_TIMEOUT = 3000;
+
+  private static final int LOG_ENTRIES = 1024;
+  private static final int MAX_LINE_LENGTH = 128;
+  private static final int MAX_PENDING_JOBS = 8;
+
+  /**
+   * Number of commands the firmware may have acknowledged but not executed
+   * yet: it acknowledges a command once it is in its command buffer, which
+   * holds MAX_COMMANDS - 1 of them, including the one being executed. An
+   * interrupted job has to be resumed that many instructions before the
+   * last acknowledged one.
+   */
+  public static final int FIRMWARE_QUEUE = 9;
+
+  // longest command, "N255 L x y*255\r" with two ints of any value, or a
+  // binary frame
+  private static final int MAX_COMMAND_LENGTH = Math.max(
+      5 + 2 + Ascii.MAX_INT_LENGTH + 1 + Ascii.MAX_INT_LENGTH + 4 + 1,
+      BinaryCodec.MAX_FRAME_LENGTH);
+
+  private Transport port;
+  private InstructionSource instructions;
+  // written by the I/O thread only, sampled by the UI
+  private volatile int currentInst;
+  private volatile int inFlight;
+  private volatile boolean finished = true;
+  private volatile int acceptedJobs;
+  private volatile int resent;
+  private int windowOverride;
+  private boolean ready;
+  private final byte[] line = new byte[MAX_LINE_LENGTH];
+  private final byte[] cmd = new byte[MAX_COMMAND_LENGTH];
+  private int lineLength;
+  private long lastReceived;
+  private long lastSent;
 
+  // job parameters, set by the UI and handed over with the next job
   private float tx, ty;
   private float scale;
-  private boolean finished = true;
+  private int submittedJobs;
+  // jobs numbered below are aborted, see abort()
+  private volatile int abortBefore;
+  private ProgressJournal journal;
+  private final SpscQueue<Job> jobs = new SpscQueue<Job>(MAX_PENDING_JOBS);
+
+  // parameters of the job being sent
+  private float jobTx, jobTy;
+  private float jobScale;
+  private ProgressJournal jobJournal;
+  private StepTargets jobTargets;
+  private int jobNumber;
+  private int resumeIndex;
+
+  // position of the pen as the firmware sees it
+  private int deviceX, deviceY;
+  private boolean deviceKnown;
+  private int deviceM1, deviceM2;
+  private boolean stepsKnown;
+  private boolean shortestEncoding = true;
+  private boolean hostKinematics;
+
+  // protocol negotiation
+  private boolean binaryWanted = true;
+  private boolean sequenced;
+  private boolean binaryRequested;  // the switch is in flight or done
+  private boolean binaryMode;
+  private boolean stepsSupported;
+
+  // unacknowledged commands, oldest at ringHead
+  private final int[] ringInst = new int[MAX_WINDOW];  // -1 if not of this job
+  private final int[] ringSeq = new int[MAX_WINDOW];
+  private final char[] ringOp = new char[MAX_WINDOW];
+  private final int[] ringX = new int[MAX_WINDOW];
+  private final int[] ringY = new int[MAX_WINDOW];
+  private int ringHead;
+  private int ringUnsent;  // entries at the end waiting to be sent again
+  private int nextSeq;
+
+  private Thread ioThread;
+  private volatile boolean running;
+  private volatile boolean paused;
+  private final AsyncLog log = new AsyncLog(LOG_ENTRIES, System.out);
 
   /**
-   * Constructor, creates a new Kritzler object
+   * Constructor, creates a new Kritzler object. One Kritzler is used per
+   * connection, it negotiates the protocol when the firmware starts up.
    * 
    * @param parent
    *            PApplet object used by main sketch
@@ -25,32 +131,284 @@ public class Kritzler {
    *            Serial port set up in main sketch
    */
   public Kritzler(PApplet parent, Serial port) {
-    this.port = port;
+    this(port == null ? null : new SerialTransport(port));
+  }
+
+  /**
+   * Creates a new Kritzler object talking over the given transport
+   * 
+   * @param transport
+   *            Link to the firmware, e.g. a FirmwareSimulator
+   */
+  public Kritzler(Transport transport) {
+    this.port = transport;
   }
 
   /**
-   * Set the current Instruction list, reset current Instruction count
+   * Set the current Instruction list and hand it to the I/O thread together
+   * with the current translation and scale. A job still being sent is
+   * replaced.
    * 
    * @param instructions
    *            New set of Instructions
+   * @return False if the job was not taken, the I/O thread has
+   *         MAX_PENDING_JOBS jobs left to take over
    */
-  public void setInstructions(List<Instruction> instructions) {
-    this.instructions = instructions;
-    this.currentInst = 0;
-    this.finished = false;
+  public boolean setInstructions(InstructionSource instructions) {
+    return setInstructions(instructions, 0);
   }
 
   /**
-   * Returns the instructions in use
+   * Like setInstructions(), but skips the instructions before startIndex.
+   * The pen is lifted and moved to the end point of the instruction before
+   * it first.
    * 
-   * @return Instruction set in use by Kritzler
+   * @param instructions
+   *            New set of Instructions
+   * @param startIndex
+   *            Index of the first instruction to draw
+   * @return False if the job was not taken, see setInstructions()
    */
-  public List<Instruction> getInstructions() {
-    return instructions;
+  public boolean setInstructions(InstructionSource instructions, int startIndex) {
+    Job job = new Job();
+    job.instructions = instructions;
+    job.startIndex = startIndex;
+    job.tx = tx;
+    job.ty = ty;
+    job.scale = scale;
+    if (journal != null) {
+      job.journal = journal;
+      job.hash = ProgressJournal.hash(instructions, tx, ty, scale);
+    }
+    if (hostKinematics) {
+      job.targets = new StepTargets(instructions, tx, ty, scale);
+    }
+    job.number = submittedJobs;
+    if (!jobs.offer(job)) {
+      return false;
+    }
+    submittedJobs++;
+    return true;
   }
 
   /**
-   * Offsets all Instructions by supplied values.
+   * Set the journal that records the progress of the following jobs
+   * 
+   * @param journal
+   *            Journal or null
+   */
+  public void setJournal(ProgressJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Stops sending the current job and drops the jobs not taken over yet.
+   * Commands already sent are still executed by the Kritzler. The abort is
+   * a flag rather than a job, so a full job queue cannot lose it.
+   */
+  public void abort() {
+    abortBefore = submittedJobs;
+  }
+
+  /**
+   * Hands a job over to the I/O thread state
+   */
+  private void accept(Job job) {
+    // an unfinished job keeps its record for a resume
+    if (jobJournal != null) {
+      jobJournal.close();
+    }
+    instructions = job.instructions;
+    jobTx = job.tx;
+    jobTy = job.ty;
+    jobScale = job.scale;
+    jobJournal = job.journal;
+    jobTargets = job.targets;
+    currentInst = job.startIndex;
+    resumeIndex = job.startIndex;
+    finished = (instructions == null);
+    // acknowledgements still to come belong to the previous job
+    for (int k = 0; k < inFlight; k++) {
+      ringInst[(ringHead + k) % MAX_WINDOW] = -1;
+    }
+    if (jobJournal != null && instructions != null) {
+      jobJournal.begin(job.hash, instructions.size(), job.startIndex);
+    }
+    jobNumber = job.number;
+  }
+
+  /**
+   * Enables or disables the binary protocol. It is only used if the firmware
+   * announces support for it.
+   * 
+   * @param binary
+   *            False to stay with ASCII commands
+   */
+  public void setBinary(boolean binary) {
+    this.binaryWanted = binary;
+  }
+
+  /**
+   * Enables or disables host side kinematics. The following jobs are
+   * compiled to motor step targets as they are sent, and the targets are
+   * sent instead of coordinates if the firmware supports it.
+   * 
+   * @param hostKinematics
+   *            True to compute step targets on the host
+   */
+  public void setHostKinematics(boolean hostKinematics) {
+    this.hostKinematics = hostKinematics;
+  }
+
+  /**
+   * Set the number of commands that may be sent to the Kritzler before it
+   * has acknowledged them. A window of 1 is the old stop-and-wait behavior.
+   * By default the window depends on the protocol in use.
+   * 
+   * @param window
+   *            Maximum number of unacknowledged commands, 0 for the default
+   */
+  public void setWindow(int window) {
+    this.windowOverride = Math.max(0, Math.min(MAX_WINDOW, window));
+  }
+
+  private int getWindow() {
+    if (windowOverride > 0) {
+      return windowOverride;
+    }
+    return binaryMode ? BINARY_WINDOW : sequenced ? SEQUENCED_WINDOW : DEFAULT_WINDOW;
+  }
+
+  /**
+   * Enables or disables the use of relative commands where they are shorter
+   * than absolute ones
+   * 
+   * @param shortestEncoding
+   *            False to always send absolute commands
+   */
+  public void setShortestEncoding(boolean shortestEncoding) {
+    this.shortestEncoding = shortestEncoding;
+  }
+
+  /**
+   * Returns the number of commands sent but not yet acknowledged
+   * 
+   * @return Number of commands in flight
+   */
+  public int getInFlight() {
+    return inFlight;
+  }
+
+  /**
+   * Returns how many commands had to be sent again
+   * 
+   * @return Number of retransmitted commands
+   */
+  public int getResent() {
+    return resent;
+  }
+
+  /**
+   * Starts the serial I/O thread. From now on the Kritzler reads and writes
+   * the port on its own, the UI only samples the progress.
+   */
+  public void start() {
+    if (ioThread != null) {
+      return;
+    }
+    running = true;
+    ioThread = new Thread(new Runnable() {
+      public void run() {
+        while (running) {
+          if (!poll()) {
+            try {
+              Thread.sleep(1);
+            }
+            catch (InterruptedException e) {
+              return;
+            }
+          }
+        }
+      }
+    }, "kritzler-io");
+    ioThread.setDaemon(true);
+    ioThread.start();
+  }
+
+  /**
+   * Does one round of I/O: takes over new jobs, reads what the firmware sent
+   * and sends more commands if the window allows. Called by the I/O thread;
+   * a simulation that does not start the thread calls it directly.
+   * 
+   * @return True if anything was read
+   */
+  public boolean poll() {
+    Job job;
+    while ((job = jobs.poll()) != null) {
+      if (job.number >= abortBefore) {
+        accept(job);
+      }
+      acceptedJobs++;
+    }
+    if (instructions != null && jobNumber < abortBefore) {
+      accept(new Job());
+    }
+    if (port != null && port.available() > 0) {
+      processSerial();
+      return true;
+    }
+    checkTimeout();
+    if (!paused) {
+      fillWindow();
+    }
+    return false;
+  }
+
+  /**
+   * Stops the serial I/O thread and waits for it to terminate, and closes
+   * the journal of the current job. Commands already sent are still
+   * executed by the Kritzler.
+   */
+  public void stop() {
+    running = false;
+    if (ioThread != null) {
+      ioThread.interrupt();
+      try {
+        ioThread.join(1000);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      ioThread = null;
+    }
+    if (jobJournal != null) {
+      jobJournal.close();
+    }
+  }
+
+  /**
+   * Pauses or resumes sending. Acknowledgements are still read while paused.
+   * 
+   * @param paused
+   *            True to hold back further commands
+   */
+  public void setPaused(boolean paused) {
+    this.paused = paused;
+  }
+
+  /**
+   * Prints the messages of the I/O thread, to be called from the UI thread
+   * only
+   * 
+   * @return True if anything was printed
+   */
+  public boolean printMessages() {
+    return log.drain();
+  }
+
+  /**
+   * Offsets all Instructions by supplied values. Applies to the next call of
+   * setInstructions().
    * 
    * Values should correspond to coordinate of top-left corner of physical
    * canvas.
@@ -66,7 +424,7 @@ public class Kritzler {
   }
 
   /**
-   * Set the scale factor
+   * Set the scale factor. Applies to the next call of setInstructions().
    * 
    * @param s
    *            Scale factor (1 = no scaling)
@@ -81,47 +439,59 @@ public class Kritzler {
    * @return True if current instruction is final instruction, false if not
    */
   public boolean isFinished() {
-    return finished;
-  }
-
-  /**
-   * Check the Serial port for new messages
-   */
-  public void checkSerial() {
-    if (port != null && port.available() > 0)
-      processSerial();
+    return acceptedJobs == submittedJobs && finished;
   }
 
   /**
-   * Process any incoming Serial messages coming from the Arduino
+   * Process any incoming Serial messages coming from the Arduino. Lines are
+   * collected in a reusable byte buffer, no Strings are created.
    */
   public void processSerial() {
+    lastReceived = port.millis();
     while (port.available() > 0) {
       int c = port.read();
 
-      // Fill the buffer until carriage return is received
+      // Fill the buffer until line feed is received
       if (c != 10) {
-        buf.append((char) c);
-
-        // Process buffer
+        if (lineLength < line.length) {
+          line[lineLength++] = (byte) c;
+        }
       } 
       else {
-        // Retrieve complete message from Serial buffer, then reset
-        // buffer
-        String message = buf.toString();
-        buf.setLength(0);
-
-        // Remove the last character (line break)
-        if (message.length() > 0) {
-          message = message.substring(0, message.length() - 1);
+        // Remove the carriage return in front of the line feed
+        int len = lineLength;
+        if (len > 0 && line[len - 1] == 13) {
+          len--;
         }
+        lineLength = 0;
 
         // Send "#" messages to console, others to processMessage
-        if (message.startsWith("#")) {
-          System.out.println("bot: " + message);
+        if (len > 0 && line[0] == '#') {
+          if (Ascii.equals(line, 0, len, BinaryCodec.PROTOCOL_BANNER)) {
+            sequenced = true;
+          }
+          else if (Ascii.equals(line, 0, len, StepTargets.STEPS_BANNER)) {
+            stepsSupported = true;
+          }
+          AsyncLog.Entry e = log.claim();
+          if (e != null) {
+            log.publish(e.append("bot: ").append(line, 0, len));
+          }
         } 
+        else if (Ascii.equals(line, 0, len, "OK")) {
+          processOk();
+        }
+        else if (len > 3 && Ascii.startsWith(line, len, "OK ")) {
+          processSequencedOk(Ascii.parseInt(line, 3, len));
+        }
+        else if (len > 3 && Ascii.startsWith(line, len, "RS ")) {
+          processResend(Ascii.parseInt(line, 3, len));
+        }
         else {
-          processMessage(message);
+          AsyncLog.Entry e = log.claim();
+          if (e != null) {
+            log.publish(e.append("unknown: ").append(line, 0, len));
+          }
         }
       }
     }
@@ -135,60 +505,467 @@ public class Kritzler {
    */
   public void processMessage(String message) {
     if (message.equals("OK")) {
-      System.out.println("received ok");
-      if (instructions != null) {
-        if (finished) {
-          System.out.println("nothing to do");
-        } 
-        else {
-          Instruction inst = instructions.get(currentInst);
-          currentInst++;
-          sendInstruction(inst);
-        }
-        if (currentInst >= instructions.size()) {
-          finished = true;
-          currentInst--;  // reset to the last position
-        }
-      }
+      processOk();
     } 
     else {
-      System.out.println("unknown: " + message);
+      log.log("unknown: " + message);
+    }
+  }
+
+  /**
+   * Handles a plain OK from the Arduino
+   */
+  private void processOk() {
+    log.log("received ok");
+    // The first OK is sent by the firmware after start up, the others
+    // acknowledge an unsequenced command. Sequenced commands, the protocol
+    // switch among them, are acknowledged with "OK n".
+    if (!ready) {
+      ready = true;
+    }
+    else if (inFlight > 0 && !sequenced) {
+      acknowledgeHead();
+    }
+    fillWindow();
+  }
+
+  /**
+   * Handles the acknowledgement of a sequenced command. The firmware takes
+   * commands in order only, so it acknowledges every command before it as
+   * well, whose OK may have been lost. Acknowledgements of commands that
+   * were sent twice are ignored.
+   * 
+   * @param seq
+   *            Sequence number of the command
+   */
+  private void processSequencedOk(int seq) {
+    AsyncLog.Entry e = log.claim();
+    if (e != null) {
+      log.publish(e.append("received ok ").append(seq));
+    }
+    acknowledgeBefore((seq + 1) & 0xFF);
+    fillWindow();
+  }
+
+  /**
+   * Removes the sequenced commands before the given one from the ring. Does
+   * nothing if the sequence number is not within the commands in flight.
+   * 
+   * @param seq
+   *            Sequence number of the first command not acknowledged
+   */
+  private void acknowledgeBefore(int seq) {
+    if (inFlight == 0) {
+      return;
+    }
+    int n = (seq - ringSeq[ringHead]) & 0xFF;
+    if (n > inFlight) {
+      return;
+    }
+    for (int k = 0; k < n; k++) {
+      acknowledgeHead();
+    }
+    // late OKs for commands that were about to be sent again
+    ringUnsent = Math.min(ringUnsent, inFlight);
+  }
+
+  /**
+   * Removes the oldest command from the ring and records the progress
+   */
+  private void acknowledgeHead() {
+    int index = ringInst[ringHead];
+    char op = ringOp[ringHead];
+    ringHead = (ringHead + 1) % MAX_WINDOW;
+    inFlight--;
+    if (op == BinaryCodec.SWITCH_COMMAND) {
+      binaryMode = true;
+      log.log("switched to binary protocol");
+    }
+    if (index >= 0 && jobJournal != null) {
+      jobJournal.acknowledge(index + 1);
     }
   }
 
   /**
-   * Processes and sends Serial command based on supplied Instruction
+   * Handles a resend request. The firmware rejected the command with the
+   * given sequence number and drops everything after it, so the unacknowledged
+   * part of the window is sent again. Everything before it was taken, even
+   * if its OK got lost. Any rejection makes the firmware fall back to ASCII
+   * until the protocol is switched again.
+   * 
+   * @param seq
+   *            Sequence number the firmware expects next
+   */
+  private void processResend(int seq) {
+    AsyncLog.Entry e = log.claim();
+    if (e != null) {
+      log.publish(e.append("resend from ").append(seq));
+    }
+    acknowledgeBefore(seq);
+    if (binaryMode) {
+      binaryMode = false;
+      binaryRequested = false;
+    }
+    if (inFlight == 0 || ringSeq[ringHead] != seq) {
+      // stale, already handled
+      return;
+    }
+    resendUnacknowledged();
+  }
+
+  /**
+   * Sends the unacknowledged sequenced commands again if the firmware has
+   * been silent for too long since the last command went out, e.g. because
+   * a command or its OK got lost. Silence before that, while paused or
+   * between jobs, does not count.
+   */
+  private void checkTimeout() {
+    if (sequenced && inFlight > 0
+        && port.millis() - Math.max(lastReceived, lastSent) > RESEND_TIMEOUT) {
+      log.log("timeout");
+      lastReceived = port.millis();
+      resendUnacknowledged();
+    }
+  }
+
+  private void resendUnacknowledged() {
+    ringUnsent = inFlight;
+    flushRing();
+  }
+
+  /**
+   * Sends commands waiting for retransmission, as far as the window allows
+   */
+  private void flushRing() {
+    int window = getWindow();
+    while (ringUnsent > 0 && inFlight - ringUnsent < window) {
+      int slot = (ringHead + inFlight - ringUnsent) % MAX_WINDOW;
+      writeCommand(ringOp[slot], ringSeq[slot], ringX[slot], ringY[slot]);
+      ringUnsent--;
+      resent++;
+    }
+  }
+
+  /**
+   * Sends instructions until the window of unacknowledged commands is full.
+   * The job is finished once every instruction has been acknowledged.
+   */
+  private void fillWindow() {
+    if (!ready) {
+      return;
+    }
+    flushRing();
+    if (paused || instructions == null || ringUnsent > 0) {
+      return;
+    }
+    if (binaryWanted && sequenced && !binaryRequested) {
+      // switch when nothing is in flight, everything after the switch is
+      // sent as frames
+      if (inFlight == 0) {
+        binaryRequested = true;
+        queueCommand(BinaryCodec.SWITCH_COMMAND, 0, 0, -1);
+      }
+      return;
+    }
+    if (binaryRequested && !binaryMode) {
+      return;
+    }
+    int window = getWindow();
+    if (resumeIndex > 0 && inFlight < window) {
+      // lift the pen and travel to where the interrupted job stopped
+      int last = resumeIndex - 1;
+      if (useSteps()) {
+        sendSteps(last, false, -1);
+      }
+      else {
+        sendResumeMove(last);
+      }
+      resumeIndex = 0;
+    }
+    while (inFlight < window && currentInst < instructions.size()) {
+      int k = currentInst++;
+      if (useSteps()) {
+        sendSteps(k, jobTargets.isDown(k), k);
+      }
+      else {
+        sendInstruction(instructions.getType(k), instructions.getX(k), instructions.getY(k), k);
+      }
+    }
+    if (!finished && currentInst >= instructions.size() && inFlight == 0) {
+      finished = true;
+      if (jobJournal != null) {
+        jobJournal.close();
+      }
+    }
+  }
+
+  /**
+   * Processes and sends Serial command based on supplied Instruction. The
+   * command is formatted into a reusable byte buffer. With shortest encoding
+   * enabled, the relative form ('m'/'l') is used whenever it is shorter than
+   * the absolute one. The device position is tracked here, including the
+   * clamping done by the firmware, so relative commands do not drift.
    * 
    * @param i
    *            Instruction to send
    */
   public void sendInstruction(Instruction i) {
+    sendInstruction(i.type, i.x, i.y, -1);
+  }
+
+  private void sendInstruction(int type, float ix, float iy, int index) {
     // Abort if Serial port is unavailable
     if (port == null)
       return;
 
-    // Prepare variables for output
-    String msg = null;
-    int x = (int) (i.x * scale);
-    int y = (int) (i.y * scale);
-
-    // Generate the actual command
-    switch (i.type) {
-    case Instruction.MOVE_ABS:
-      msg = "M " + (int) (x + tx) + " " + (int) (y + ty) + '\r';
-      break;
-    case Instruction.LINE_ABS:
-      msg = "L " + (int) (x + tx) + " " + (int) (y + ty) + '\r';
+    // Compute the absolute target on the device
+    int x = (int) (ix * jobScale);
+    int y = (int) (iy * jobScale);
+    boolean move;
+    boolean relative = false;
+    switch (type) {
+    case Instruction.MOVE_REL:
+    case Instruction.LINE_REL:
+      x += deviceX;
+      y += deviceY;
+      move = type == Instruction.MOVE_REL;
+      // without a known position only the relative form is correct
+      relative = !deviceKnown;
       break;
+    default:
+      x += jobTx;
+      y += jobTy;
+      move = type == Instruction.MOVE_ABS;
     }
-    
-    // Output message to console and write to Serial port
-    System.out.println("sending (" + currentInst + "): " + msg);
-    port.write(msg);
+    sendTarget(move, x, y, relative, index);
   }
-  
+
+  /**
+   * Sends a move or line to an absolute target on the device, in the
+   * shorter form unless relative is forced
+   * 
+   * @param move
+   *            True to move with the pen up
+   * @param x
+   *            Target on the device
+   * @param y
+   *            Target on the device
+   * @param relative
+   *            True to send the relative form in any case
+   * @param index
+   *            Instruction index to acknowledge, -1 for none
+   */
+  private void sendTarget(boolean move, int x, int y, boolean relative, int index) {
+    // Pick the shorter form
+    int rx = x - deviceX;
+    int ry = y - deviceY;
+    if (!relative && shortestEncoding && deviceKnown) {
+      if (binaryMode) {
+        relative = BinaryCodec.length(rx) + BinaryCodec.length(ry)
+          < BinaryCodec.length(x) + BinaryCodec.length(y);
+      }
+      else {
+        relative = Ascii.length(rx) + Ascii.length(ry) < Ascii.length(x) + Ascii.length(y);
+      }
+    }
+    char op;
+    if (relative) {
+      op = move ? 'm' : 'l';
+      x = rx;
+      y = ry;
+    }
+    else {
+      op = move ? 'M' : 'L';
+    }
+    if (!relative || deviceKnown) {
+      deviceX = Polargraph.clampX(deviceX + rx);
+      deviceY = Polargraph.clampY(deviceY + ry);
+      deviceKnown = true;
+      deviceM1 = Polargraph.stepsM1(deviceX, deviceY);
+      deviceM2 = Polargraph.stepsM2(deviceX, deviceY);
+      stepsKnown = true;
+    }
+
+    // Output message to console
+    AsyncLog.Entry e = log.claim();
+    if (e != null) {
+      log.publish(e.append("sending (").append(currentInst).append("): ")
+          .append(op).append(' ').append(x).append(' ').append(y));
+    }
+
+    // Remember commands until they are acknowledged
+    queueCommand(op, x, y, index);
+  }
+
+  /**
+   * Lifts the pen and moves it to where an instruction of the current job
+   * ends. Relative instructions only carry deltas, so the target is tracked
+   * like sendInstruction() does, from the closest absolute instruction
+   * before on, or from the current position if there is none.
+   * 
+   * @param last
+   *            Index of the instruction
+   */
+  private void sendResumeMove(int last) {
+    if (port == null) {
+      return;
+    }
+    int first = last;
+    while (first > 0 && instructions.isRelative(first)) {
+      first--;
+    }
+    int x = deviceX;
+    int y = deviceY;
+    for (int k = first; k <= last; k++) {
+      int ix = (int) (instructions.getX(k) * jobScale);
+      int iy = (int) (instructions.getY(k) * jobScale);
+      if (instructions.isRelative(k)) {
+        x = Polargraph.clampX(x + ix);
+        y = Polargraph.clampY(y + iy);
+      }
+      else {
+        x = Polargraph.clampX((int) (ix + jobTx));
+        y = Polargraph.clampY((int) (iy + jobTy));
+      }
+    }
+    sendTarget(true, x, y, false, -1);
+  }
+
+  private boolean useSteps() {
+    return jobTargets != null && stepsSupported;
+  }
+
+  /**
+   * Sends the precompiled step targets of an instruction ('U'/'D', or
+   * 'u'/'d' with deltas where they are shorter). The firmware keeps the
+   * coordinates of its last 'M'/'L' command, so deviceX/Y stay valid.
+   * 
+   * @param t
+   *            Index into the job's step targets
+   * @param down
+   *            True to draw, false to move with the pen up
+   * @param index
+   *            Instruction index to acknowledge, -1 for none
+   */
+  private void sendSteps(int t, boolean down, int index) {
+    int a = jobTargets.getM1(t);
+    int b = jobTargets.getM2(t);
+    int ra = a - deviceM1;
+    int rb = b - deviceM2;
+    boolean relative = false;
+    if (shortestEncoding && stepsKnown) {
+      if (binaryMode) {
+        relative = BinaryCodec.length(ra) + BinaryCodec.length(rb)
+          < BinaryCodec.length(a) + BinaryCodec.length(b);
+      }
+      else {
+        relative = Ascii.length(ra) + Ascii.length(rb) < Ascii.length(a) + Ascii.length(b);
+      }
+    }
+    char op = down ? 'D' : 'U';
+    deviceM1 = a;
+    deviceM2 = b;
+    stepsKnown = true;
+    if (relative) {
+      op = down ? 'd' : 'u';
+      a = ra;
+      b = rb;
+    }
+
+    AsyncLog.Entry e = log.claim();
+    if (e != null) {
+      log.publish(e.append("sending (").append(currentInst).append("): ")
+          .append(op).append(' ').append(a).append(' ').append(b));
+    }
+    queueCommand(op, a, b, index);
+  }
+
+  /**
+   * Remembers a command until it is acknowledged and sends it
+   */
+  private void queueCommand(char op, int x, int y, int index) {
+    int seq = -1;
+    if (sequenced) {
+      seq = nextSeq;
+      nextSeq = (nextSeq + 1) & 0xFF;
+    }
+    int slot = (ringHead + inFlight) % MAX_WINDOW;
+    ringInst[slot] = index;
+    ringSeq[slot] = seq;
+    ringOp[slot] = op;
+    ringX[slot] = x;
+    ringY[slot] = y;
+    inFlight++;
+    writeCommand(op, seq, x, y);
+  }
+
+  /**
+   * Generates the actual command and writes it to the Serial port
+   * 
+   * @param seq
+   *            Sequence number, -1 for an unsequenced command
+   */
+  private void writeCommand(char op, int seq, int x, int y) {
+    int n = 0;
+    if (binaryMode) {
+      n = BinaryCodec.encode(op, seq, x, y, cmd, 0);
+    }
+    else {
+      if (seq >= 0) {
+        cmd[n++] = 'N';
+        n = Ascii.formatInt(seq, cmd, n);
+        cmd[n++] = ' ';
+      }
+      cmd[n++] = (byte) op;
+      cmd[n++] = ' ';
+      n = Ascii.formatInt(x, cmd, n);
+      cmd[n++] = ' ';
+      n = Ascii.formatInt(y, cmd, n);
+      if (seq >= 0) {
+        int checksum = 0;
+        for (int k = 0; k < n; k++) {
+          checksum ^= cmd[k];
+        }
+        cmd[n++] = '*';
+        n = Ascii.formatInt(checksum & 0xFF, cmd, n);
+      }
+      cmd[n++] = '\r';
+    }
+    write(cmd, n);
+  }
+
+  private void write(byte[] buf, int length) {
+    lastSent = port.millis();
+    try {
+      port.write(buf, 0, length);
+    }
+    catch (IOException ex) {
+      log.log("write failed");
+    }
+  }
+
+  /**
+   * Returns the index of the last Instruction that was sent
+   * 
+   * @return Index into the instruction list, 0 if nothing was sent yet
+   */
   public int getCurrentInstructionIndex() {
-    return currentInst;
+    return Math.max(0, currentInst - 1);
+  }
+
+  /**
+   * Instructions and parameters handed from the UI to the I/O thread. A job
+   * without instructions aborts the current one.
+   */
+  private static class Job {
+    int number;  // submittedJobs when it was submitted
+    InstructionSource instructions;
+    int startIndex;
+    float tx, ty;
+    float scale;
+    ProgressJournal journal;
+    long hash;
+    StepTargets targets;
   }
 
 }
@@ -0,0 +1,365 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * Removes segments that would be drawn twice, like edges shared by adjacent
+ * shapes or an outline that appears twice. Segments are checked in drawing
+ * order against the ones kept so far: the parts of a segment that lie along
+ * a kept segment, within the tolerance on both of its end points, are
+ * dropped. Kept segments are held in a grid hash, in the cells they pass
+ * through, so every segment only looks at its surroundings and long
+ * segments cost in proportion to their length, not to their bounding box.
+ */
+public class OverlapFilter {
+
+  private final float tolerance;
+
+  // kept segments
+  private float[] x1 = new float[1024];
+  private float[] y1 = new float[1024];
+  private float[] x2 = new float[1024];
+  private float[] y2 = new float[1024];
+  private int[] seen = new int[1024];  // query that last saw a segment
+  private int segments;
+  private int query;
+
+  // grid hash: cell key -> list of entries, an entry refers to a segment
+  private long[] keys = new long[1024];
+  private int[] heads = new int[1024];
+  private int cells;
+  private int[] entrySegment = new int[4096];
+  private int[] entryNext = new int[4096];
+  private int entries;
+
+  // cells a segment passes through
+  private final GridWalk walk;
+
+  // covered parts of the segment under test, as parameters 0..1
+  private float[] from = new float[16];
+  private float[] to = new float[16];
+  private int covered;
+
+  private int removed;
+
+  /**
+   * Creates a filter
+   *
+   * @param tolerance
+   *            Largest distance of a segment from a kept one to count as
+   *            overlapping
+   * @param cellSize
+   *            Size of the grid cells, about the typical segment length
+   */
+  public OverlapFilter(float tolerance, float cellSize) {
+    this.tolerance = tolerance;
+    walk = new GridWalk(0, 0, Math.max(cellSize, Math.max(2 * tolerance, 1e-3F)));
+    for (int i = 0; i < heads.length; i++) {
+      heads[i] = -1;
+    }
+  }
+
+  /**
+   * Removes overlapping segments from paths
+   *
+   * @param paths
+   *            Paths in drawing order
+   * @param tolerance
+   *            Largest distance of a segment from a kept one to count as
+   *            overlapping
+   * @return Paths with every overlap drawn once
+   */
+  public static PathIndex filter(PathIndex paths, float tolerance) {
+    double length = 0;
+    int count = 0;
+    for (int i = 0; i < paths.size; i++) {
+      length += paths.length[i];
+      count += paths.getPointCount(i) - 1;
+    }
+    OverlapFilter f = new OverlapFilter(tolerance, (count > 0) ? (float) (length / count) : 0);
+    PathIndex result = new PathIndex(paths.size, paths.getPointCount());
+    for (int i = 0; i < paths.size; i++) {
+      f.add(paths.xs, paths.ys, paths.offset[i], paths.getPointCount(i), result);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of segments removed completely or in part
+   *
+   * @return Number of segments
+   */
+  public int getRemoved() {
+    return removed;
+  }
+
+  /**
+   * Filters a polyline and remembers what was kept of it
+   *
+   * @param xs
+   *            X coordinates
+   * @param ys
+   *            Y coordinates
+   * @param first
+   *            Index of the first point
+   * @param n
+   *            Number of points
+   * @param result
+   *            Gets the pieces of the polyline that do not overlap
+   */
+  public void add(float[] xs, float[] ys, int first, int n, PathIndex result) {
+    if (n < 2) {
+      result.addPath(xs, ys, first, n);
+      return;
+    }
+    result.endPath();
+    // true while the piece being added ends at the previous point
+    boolean open = false;
+    for (int k = first + 1; k < first + n; k++) {
+      float ax = xs[k - 1];
+      float ay = ys[k - 1];
+      float bx = xs[k];
+      float by = ys[k];
+      findCovered(ax, ay, bx, by);
+      if (covered > 0) {
+        removed++;
+      }
+      // keep the parts between the covered ones, dropping slivers
+      float dx = bx - ax;
+      float dy = by - ay;
+      float d = (float) Math.sqrt(dx * dx + dy * dy);
+      boolean joined = open;
+      open = false;
+      float t = 0;
+      for (int c = 0; c <= covered; c++) {
+        float end = (c < covered) ? from[c] : 1;
+        if (end > t && (covered == 0 || (end - t) * d >= tolerance)) {
+          float px = (t == 0) ? ax : ax + t * dx;
+          float py = (t == 0) ? ay : ay + t * dy;
+          float qx = (end == 1) ? bx : ax + end * dx;
+          float qy = (end == 1) ? by : ay + end * dy;
+          if (t != 0 || !joined) {
+            result.endPath();
+            result.addPoint(px, py);
+          }
+          result.addPoint(qx, qy);
+          open = end == 1;
+          // later segments, of this polyline too, are checked against it
+          store(px, py, qx, qy);
+        }
+        if (c < covered) {
+          t = Math.max(t, to[c]);
+        }
+      }
+    }
+    result.endPath();
+  }
+
+  /**
+   * Collects the parts of the segment a..b that lie along kept segments into
+   * from/to, sorted and merged
+   */
+  private void findCovered(float ax, float ay, float bx, float by) {
+    covered = 0;
+    float dx = bx - ax;
+    float dy = by - ay;
+    float length = (float) Math.sqrt(dx * dx + dy * dy);
+    if (length == 0) {
+      return;
+    }
+    float ux = dx / length;
+    float uy = dy / length;
+    query++;
+    int cx1 = cellOf(Math.min(ax, bx) - tolerance);
+    int cx2 = cellOf(Math.max(ax, bx) + tolerance);
+    int cy1 = cellOf(Math.min(ay, by) - tolerance);
+    int cy2 = cellOf(Math.max(ay, by) + tolerance);
+    int reach;
+    if ((cx2 - cx1 + 1L) * (cy2 - cy1 + 1L) <= 9) {
+      // short segment, just look at every cell of its bounding box
+      reach = 0;
+      walk.clear();
+      for (int cx = cx1; cx <= cx2; cx++) {
+        for (int cy = cy1; cy <= cy2; cy++) {
+          walk.add(cx, cy);
+        }
+      }
+    }
+    else {
+      // cells are at least twice the tolerance wide, so everything within
+      // the tolerance of the segment is in the cells it passes through or
+      // their neighbours, as far as those are in reach of its bounding box
+      reach = 1;
+      walk.walk(ax, ay, bx, by);
+    }
+    int side = 2 * reach + 1;
+    for (int i = 0; i < walk.size(); i++) {
+      for (int n = 0; n < side * side; n++) {
+        int cx = walk.getX(i) + n % side - reach;
+        int cy = walk.getY(i) + n / side - reach;
+        if (cx < cx1 || cx > cx2 || cy < cy1 || cy > cy2) {
+          continue;
+        }
+        int h = slot(cx, cy, false);
+        for (int e = (h < 0) ? -1 : heads[h]; e >= 0; e = entryNext[e]) {
+          int s = entrySegment[e];
+          if (seen[s] == query) {
+            continue;
+          }
+          seen[s] = query;
+          // both end points close to the line through a and b
+          float px = x1[s] - ax;
+          float py = y1[s] - ay;
+          float qx = x2[s] - ax;
+          float qy = y2[s] - ay;
+          if (Math.abs(px * uy - py * ux) > tolerance
+              || Math.abs(qx * uy - qy * ux) > tolerance) {
+            continue;
+          }
+          float tp = (px * ux + py * uy) / length;
+          float tq = (qx * ux + qy * uy) / length;
+          float lo = Math.max(Math.min(tp, tq), 0);
+          float hi = Math.min(Math.max(tp, tq), 1);
+          if (hi > lo) {
+            cover(lo, hi);
+          }
+        }
+      }
+    }
+    // overlaps shorter than the tolerance are rounding, e.g. at the joint
+    // with the previous segment
+    int m = 0;
+    for (int c = 0; c < covered; c++) {
+      if ((to[c] - from[c]) * length >= tolerance) {
+        from[m] = from[c];
+        to[m] = to[c];
+        m++;
+      }
+    }
+    covered = m;
+  }
+
+  /**
+   * Adds a covered interval, keeping the intervals sorted and disjoint
+   */
+  private void cover(float lo, float hi) {
+    if (covered + 1 > from.length) {
+      float[] f = new float[2 * from.length];
+      float[] t = new float[2 * from.length];
+      System.arraycopy(from, 0, f, 0, covered);
+      System.arraycopy(to, 0, t, 0, covered);
+      from = f;
+      to = t;
+    }
+    int i = covered;
+    while (i > 0 && from[i - 1] > lo) {
+      from[i] = from[i - 1];
+      to[i] = to[i - 1];
+      i--;
+    }
+    from[i] = lo;
+    to[i] = hi;
+    covered++;
+    // merge overlapping neighbours
+    int m = 0;
+    for (int k = 1; k < covered; k++) {
+      if (from[k] <= to[m]) {
+        to[m] = Math.max(to[m], to[k]);
+      }
+      else {
+        m++;
+        from[m] = from[k];
+        to[m] = to[k];
+      }
+    }
+    covered = m + 1;
+  }
+
+  private int cellOf(float v) {
+    return walk.cellX(v);
+  }
+
+  /**
+   * Adds a segment to the index, in every cell it passes through
+   */
+  private void store(float ax, float ay, float bx, float by) {
+    if (segments == x1.length) {
+      x1 = grow(x1);
+      y1 = grow(y1);
+      x2 = grow(x2);
+      y2 = grow(y2);
+      int[] s = new int[2 * seen.length];
+      System.arraycopy(seen, 0, s, 0, segments);
+      seen = s;
+    }
+    int s = segments++;
+    x1[s] = ax;
+    y1[s] = ay;
+    x2[s] = bx;
+    y2[s] = by;
+    walk.walk(ax, ay, bx, by);
+    for (int i = 0; i < walk.size(); i++) {
+      int h = slot(walk.getX(i), walk.getY(i), true);
+      if (entries == entrySegment.length) {
+        int[] es = new int[2 * entries];
+        int[] en = new int[2 * entries];
+        System.arraycopy(entrySegment, 0, es, 0, entries);
+        System.arraycopy(entryNext, 0, en, 0, entries);
+        entrySegment = es;
+        entryNext = en;
+      }
+      entrySegment[entries] = s;
+      entryNext[entries] = heads[h];
+      heads[h] = entries++;
+    }
+  }
+
+  private static float[] grow(float[] a) {
+    float[] b = new float[2 * a.length];
+    System.arraycopy(a, 0, b, 0, a.length);
+    return b;
+  }
+
+  private int slot(int cx, int cy, boolean create) {
+    long key = ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    int mask = keys.length - 1;
+    int h = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    while (heads[h] >= 0) {
+      if (keys[h] == key) {
+        return h;
+      }
+      h = (h + 1) & mask;
+    }
+    if (!create) {
+      return -1;
+    }
+    if (2 * (cells + 1) > keys.length) {
+      rehash();
+      return slot(cx, cy, true);
+    }
+    keys[h] = key;
+    cells++;
+    return h;
+  }
+
+  private void rehash() {
+    long[] oldKeys = keys;
+    int[] oldHeads = heads;
+    keys = new long[2 * oldKeys.length];
+    heads = new int[2 * oldHeads.length];
+    for (int i = 0; i < heads.length; i++) {
+      heads[i] = -1;
+    }
+    int mask = keys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldHeads[i] < 0) {
+        continue;
+      }
+      int h = (int) ((oldKeys[i] * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+      while (heads[h] >= 0) {
+        h = (h + 1) & mask;
+      }
+      keys[h] = oldKeys[i];
+      heads[h] = oldHeads[i];
+    }
+  }
+
+}
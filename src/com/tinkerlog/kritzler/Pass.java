@@ -0,0 +1,24 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * A stage of the Pipeline that turns a shape into instructions. Passes work
+ * on the geometry and instructions held by the PlotJob.
+ */
+public interface Pass {
+
+  /**
+   * Returns the name the pass is reported and configured under
+   * 
+   * @return Short name, e.g. "order"
+   */
+  String getName();
+
+  /**
+   * Runs the pass
+   * 
+   * @param job
+   *            Job to work on, changed in place
+   */
+  void run(PlotJob job);
+
+}
@@ -0,0 +1,205 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * The paths of a job as polylines in primitive arrays: the points of all
+ * paths one after the other, and the start and end point, bounds and length
+ * of every path, computed as each path is added. Passes build a new index
+ * point by point or path by path, ordering, masking and encoding read the
+ * arrays directly.
+ * <p>
+ * The arrays grow as paths are added and may be longer than their content,
+ * only the first size paths and getPointCount() points are valid.
+ */
+public class PathIndex {
+
+  /** Number of paths. */
+  public int size;
+
+  /** Path i has the points offset[i] up to offset[i + 1] exclusive. */
+  public int[] offset;
+  public float[] xs;
+  public float[] ys;
+
+  /** First and last point of every path. */
+  public float[] sx;
+  public float[] sy;
+  public float[] ex;
+  public float[] ey;
+
+  /** min x, min y, max x, max y of every path. */
+  public float[] bounds;
+
+  /** Length of every path. */
+  public double[] length;
+
+  // points added after offset[size] belong to the path not yet ended
+  private int points;
+
+  /**
+   * Creates an empty index
+   */
+  public PathIndex() {
+    this(64, 1024);
+  }
+
+  /**
+   * Creates an empty index
+   *
+   * @param paths
+   *            Number of paths to make room for
+   * @param points
+   *            Number of points to make room for
+   */
+  public PathIndex(int paths, int points) {
+    paths = Math.max(paths, 16);
+    points = Math.max(points, 16);
+    offset = new int[paths + 1];
+    xs = new float[points];
+    ys = new float[points];
+    sx = new float[paths];
+    sy = new float[paths];
+    ex = new float[paths];
+    ey = new float[paths];
+    bounds = new float[4 * paths];
+    length = new double[paths];
+  }
+
+  /**
+   * Appends a point to the path being added
+   *
+   * @param x
+   *            X coordinate
+   * @param y
+   *            Y coordinate
+   */
+  public void addPoint(float x, float y) {
+    if (points == xs.length) {
+      float[] nx = new float[2 * points];
+      float[] ny = new float[2 * points];
+      System.arraycopy(xs, 0, nx, 0, points);
+      System.arraycopy(ys, 0, ny, 0, points);
+      xs = nx;
+      ys = ny;
+    }
+    xs[points] = x;
+    ys[points] = y;
+    points++;
+  }
+
+  /**
+   * Ends the path being added and computes its descriptors. Nothing is added
+   * if it has no points.
+   */
+  public void endPath() {
+    int o = offset[size];
+    if (points == o) {
+      return;
+    }
+    if (size + 1 == offset.length) {
+      grow();
+    }
+    float minX = Float.POSITIVE_INFINITY;
+    float minY = Float.POSITIVE_INFINITY;
+    float maxX = Float.NEGATIVE_INFINITY;
+    float maxY = Float.NEGATIVE_INFINITY;
+    double l = 0;
+    for (int k = o; k < points; k++) {
+      float x = xs[k];
+      float y = ys[k];
+      minX = Math.min(minX, x);
+      minY = Math.min(minY, y);
+      maxX = Math.max(maxX, x);
+      maxY = Math.max(maxY, y);
+      if (k > o) {
+        float dx = x - xs[k - 1];
+        float dy = y - ys[k - 1];
+        l += Math.sqrt(dx * dx + dy * dy);
+      }
+    }
+    int i = size++;
+    offset[size] = points;
+    sx[i] = xs[o];
+    sy[i] = ys[o];
+    ex[i] = xs[points - 1];
+    ey[i] = ys[points - 1];
+    bounds[4 * i] = minX;
+    bounds[4 * i + 1] = minY;
+    bounds[4 * i + 2] = maxX;
+    bounds[4 * i + 3] = maxY;
+    length[i] = l;
+  }
+
+  /**
+   * Adds a path, ending the one being added first
+   *
+   * @param x
+   *            X coordinates
+   * @param y
+   *            Y coordinates
+   * @param from
+   *            Index of the first point
+   * @param n
+   *            Number of points
+   */
+  public void addPath(float[] x, float[] y, int from, int n) {
+    endPath();
+    for (int k = from; k < from + n; k++) {
+      addPoint(x[k], y[k]);
+    }
+    endPath();
+  }
+
+  /**
+   * Adds a path of another index
+   *
+   * @param paths
+   *            Index to copy from
+   * @param i
+   *            Index of the path
+   */
+  public void addPath(PathIndex paths, int i) {
+    addPath(paths.xs, paths.ys, paths.offset[i], paths.getPointCount(i));
+  }
+
+  /**
+   * Returns the number of points of a path
+   *
+   * @param i
+   *            Index of the path
+   * @return Number of points
+   */
+  public int getPointCount(int i) {
+    return offset[i + 1] - offset[i];
+  }
+
+  /**
+   * Returns the number of points of all paths
+   *
+   * @return Number of points
+   */
+  public int getPointCount() {
+    return offset[size];
+  }
+
+  private void grow() {
+    int capacity = 2 * size;
+    int[] o = new int[capacity + 1];
+    System.arraycopy(offset, 0, o, 0, size + 1);
+    offset = o;
+    sx = copyOf(sx, capacity);
+    sy = copyOf(sy, capacity);
+    ex = copyOf(ex, capacity);
+    ey = copyOf(ey, capacity);
+    bounds = copyOf(bounds, 4 * capacity);
+    double[] l = new double[capacity];
+    System.arraycopy(length, 0, l, 0, size);
+    length = l;
+  }
+
+  private float[] copyOf(float[] a, int capacity) {
+    float[] b = new float[capacity];
+    System.arraycopy(a, 0, b, 0, Math.min(a.length, capacity));
+    return b;
+  }
+
+}
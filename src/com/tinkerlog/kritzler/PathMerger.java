@@ -0,0 +1,222 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * Joins paths whose end points (nearly) coincide into chains that can be
+ * drawn without lifting the pen. End points are put into a spatial hash with
+ * cells of the tolerance size, so every end point only looks at the 3x3
+ * cells around it. Matches that would close a chain into a loop are skipped,
+ * every chain keeps two free ends.
+ */
+public final class PathMerger {
+
+  private PathMerger() {
+  }
+
+  /**
+   * Finds chains of paths
+   *
+   * @param sx
+   *            X of the first point of each path
+   * @param sy
+   *            Y of the first point
+   * @param ex
+   *            X of the last point
+   * @param ey
+   *            Y of the last point
+   * @param n
+   *            Number of paths
+   * @param tolerance
+   *            Largest distance of two end points to be joined
+   * @return The chains, every path is in exactly one of them
+   */
+  public static Chains merge(float[] sx, float[] sy, float[] ex, float[] ey, int n,
+      float tolerance) {
+    // point 2i is the start, 2i+1 the end of path i
+    float[] px = new float[2 * n];
+    float[] py = new float[2 * n];
+    for (int i = 0; i < n; i++) {
+      px[2 * i] = sx[i];
+      py[2 * i] = sy[i];
+      px[2 * i + 1] = ex[i];
+      py[2 * i + 1] = ey[i];
+    }
+    float cell = Math.max(tolerance, 1e-3F);
+    float tol2 = tolerance * tolerance;
+    SpatialHash hash = new SpatialHash(2 * n);
+    for (int p = 0; p < 2 * n; p++) {
+      hash.add(cellOf(px[p], cell), cellOf(py[p], cell), p);
+    }
+
+    int[] link = new int[2 * n];  // end point joined to, -1 for a free end
+    int[] parent = new int[n];  // union find over paths
+    for (int p = 0; p < 2 * n; p++) {
+      link[p] = -1;
+    }
+    for (int i = 0; i < n; i++) {
+      parent[i] = i;
+    }
+    for (int p = 0; p < 2 * n; p++) {
+      if (link[p] >= 0) {
+        continue;
+      }
+      int cx = cellOf(px[p], cell);
+      int cy = cellOf(py[p], cell);
+      int best = -1;
+      float bestDist = tol2;
+      int root = find(parent, p >> 1);
+      for (int gx = cx - 1; gx <= cx + 1; gx++) {
+        for (int gy = cy - 1; gy <= cy + 1; gy++) {
+          for (int q = hash.first(gx, gy); q >= 0; q = hash.next(q)) {
+            if (link[q] >= 0 || (q >> 1) == (p >> 1)) {
+              continue;
+            }
+            float dx = px[q] - px[p];
+            float dy = py[q] - py[p];
+            float d = dx * dx + dy * dy;
+            if (d <= bestDist && find(parent, q >> 1) != root) {
+              best = q;
+              bestDist = d;
+            }
+          }
+        }
+      }
+      if (best >= 0) {
+        link[p] = best;
+        link[best] = p;
+        parent[find(parent, best >> 1)] = root;
+      }
+    }
+
+    // walk every chain from one of its free ends
+    Chains chains = new Chains(n);
+    boolean[] done = new boolean[n];
+    for (int p = 0; p < 2 * n; p++) {
+      if (link[p] >= 0 || done[p >> 1]) {
+        continue;
+      }
+      chains.begin();
+      int entry = p;
+      while (true) {
+        int path = entry >> 1;
+        done[path] = true;
+        // entered at the end means drawn backwards
+        chains.add(((entry & 1) == 0) ? path : ~path);
+        int next = link[entry ^ 1];
+        if (next < 0) {
+          break;
+        }
+        entry = next;
+      }
+    }
+    chains.end();
+    return chains;
+  }
+
+  private static int cellOf(float v, float cell) {
+    return (int) Math.floor(v / cell);
+  }
+
+  private static int find(int[] parent, int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+
+  /**
+   * Chains of paths: the paths of chain c are items[start[c]] up to
+   * items[start[c + 1]] exclusive, ~index for a path drawn backwards.
+   */
+  public static class Chains {
+
+    public final int[] items;
+    public final int[] start;
+    private int count;
+    private int size;
+
+    Chains(int n) {
+      items = new int[n];
+      start = new int[n + 1];
+    }
+
+    void begin() {
+      start[count++] = size;
+    }
+
+    void add(int item) {
+      items[size++] = item;
+    }
+
+    void end() {
+      start[count] = size;
+    }
+
+    /**
+     * Returns the number of chains
+     *
+     * @return Number of chains
+     */
+    public int size() {
+      return count;
+    }
+  }
+
+  /**
+   * Hash from grid cells to the end points in them, open addressing on the
+   * cells and a linked list of points per cell
+   */
+  private static class SpatialHash {
+
+    private final long[] keys;
+    private final int[] heads;
+    private final int[] next;
+    private final int mask;
+
+    SpatialHash(int points) {
+      int size = 16;
+      while (size < points * 2) {
+        size <<= 1;
+      }
+      keys = new long[size];
+      heads = new int[size];
+      for (int i = 0; i < size; i++) {
+        heads[i] = -1;
+      }
+      next = new int[points];
+      mask = size - 1;
+    }
+
+    private int slot(int cx, int cy, boolean create) {
+      long key = ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+      int h = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+      while (heads[h] >= 0) {
+        if (keys[h] == key) {
+          return h;
+        }
+        h = (h + 1) & mask;
+      }
+      if (!create) {
+        return -1;
+      }
+      keys[h] = key;
+      return h;
+    }
+
+    void add(int cx, int cy, int p) {
+      int h = slot(cx, cy, true);
+      next[p] = heads[h];
+      heads[h] = p;
+    }
+
+    int first(int cx, int cy) {
+      int h = slot(cx, cy, false);
+      return (h < 0) ? -1 : heads[h];
+    }
+
+    int next(int p) {
+      return next[p];
+    }
+  }
+
+}
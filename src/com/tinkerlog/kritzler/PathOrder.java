@@ -0,0 +1,507 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * Orders paths to keep the pen-up travel between them short. Paths are only
+ * known by their end points here, the result is a permutation in which a
+ * path may be drawn backwards.
+ * <p>
+ * The cost of a gap between two paths is its length, plus a penalty for
+ * lifting the pen unless the pen is dragged across it, see GapModel. The
+ * cost is never less than the length, so the search for a cheaper
+ * connection among the closest end points stops at the first one that is
+ * farther away than the connection costs.
+ */
+public final class PathOrder {
+
+  /** Number of closest end points to try connecting an end point to. */
+  private static final int NEIGHBOURS = 8;
+
+  /**
+   * Longest run of paths a 2-opt move reverses. Reversals cost time linear
+   * in their length, long ones rarely pay off on large jobs.
+   */
+  private static final int MAX_REVERSAL = 5000;
+
+  /** Longest run of paths an Or-opt move relocates. */
+  private static final int OR_OPT_LENGTH = 3;
+
+  private static final double EPSILON = 1e-3;
+
+  private PathOrder() {
+  }
+
+  /**
+   * Greedy nearest neighbour ordering: from the current pen position always
+   * continue with the closest start or end point of a path not drawn yet.
+   * Both end points of all paths are kept in a KdTree, so each step costs
+   * O(log n) on average.
+   *
+   * @param sx
+   *            X of the first point of each path
+   * @param sy
+   *            Y of the first point
+   * @param ex
+   *            X of the last point
+   * @param ey
+   *            Y of the last point
+   * @param n
+   *            Number of paths
+   * @param x
+   *            Pen position to start from
+   * @param y
+   *            Pen position to start from
+   * @return Path indices in drawing order, ~index for a path to be drawn
+   *         from its last to its first point
+   */
+  public static int[] nearestNeighbour(float[] sx, float[] sy, float[] ex, float[] ey, int n,
+      float x, float y) {
+    // point 2i is the start, 2i+1 the end of path i
+    float[] px = new float[2 * n];
+    float[] py = new float[2 * n];
+    for (int i = 0; i < n; i++) {
+      px[2 * i] = sx[i];
+      py[2 * i] = sy[i];
+      px[2 * i + 1] = ex[i];
+      py[2 * i + 1] = ey[i];
+    }
+    KdTree tree = new KdTree(px, py, 2 * n);
+    int[] order = new int[n];
+    for (int k = 0; k < n; k++) {
+      int p = tree.nearest(x, y);
+      int path = p >> 1;
+      tree.remove(p);
+      tree.remove(p ^ 1);
+      if ((p & 1) == 0) {
+        order[k] = path;
+        x = ex[path];
+        y = ey[path];
+      }
+      else {
+        order[k] = ~path;
+        x = sx[path];
+        y = sy[path];
+      }
+    }
+    return order;
+  }
+
+  /**
+   * Improves an ordering in place with 2-opt moves (reversing a run of
+   * paths, including a single one) and Or-opt moves (moving a run of up to
+   * OR_OPT_LENGTH paths elsewhere, forwards or backwards). Only moves that
+   * create a connection to one of the NEIGHBOURS closest end points are
+   * tried. Stops when no move helps any more or the time budget is used up.
+   *
+   * @param order
+   *            Ordering as returned by nearestNeighbour(), changed in place
+   * @param gaps
+   *            Cost of the gaps between paths
+   * @param budgetMillis
+   *            Time budget, including building the neighbour lists
+   * @return Cost of the improved ordering
+   */
+  public static double improve(float[] sx, float[] sy, float[] ex, float[] ey, int[] order,
+      float x, float y, GapModel gaps, long budgetMillis) {
+    return improveUntil(sx, sy, ex, ey, order, x, y, Float.NaN, Float.NaN, gaps,
+        System.currentTimeMillis() + budgetMillis);
+  }
+
+  /**
+   * Improves an ordering like improve(), without a time budget. The result
+   * only depends on the input.
+   *
+   * @return Cost of the improved ordering
+   */
+  public static double improve(float[] sx, float[] sy, float[] ex, float[] ey, int[] order,
+      float x, float y, GapModel gaps) {
+    return improveUntil(sx, sy, ex, ey, order, x, y, Float.NaN, Float.NaN, gaps,
+        Long.MAX_VALUE);
+  }
+
+  /**
+   * Improves an ordering like improve(), without a time budget, for a tour
+   * that has to end at a given point: the gap from the last path to it
+   * counts like any other.
+   *
+   * @param endX
+   *            Pen position to end at, NaN to end anywhere
+   * @param endY
+   *            Pen position to end at, NaN to end anywhere
+   * @return Cost of the improved ordering, without the gap to the end point
+   */
+  public static double improve(float[] sx, float[] sy, float[] ex, float[] ey, int[] order,
+      float x, float y, float endX, float endY, GapModel gaps) {
+    return improveUntil(sx, sy, ex, ey, order, x, y, endX, endY, gaps, Long.MAX_VALUE);
+  }
+
+  private static double improveUntil(float[] sx, float[] sy, float[] ex, float[] ey,
+      int[] order, float x, float y, float endX, float endY, GapModel gaps, long deadline) {
+    Tour tour = new Tour(sx, sy, ex, ey, order, x, y, endX, endY, gaps);
+    boolean improved = tour.findNeighbours(deadline);
+    while (improved) {
+      improved = false;
+      for (int i = 0; i < order.length; i++) {
+        if ((i & 0xFF) == 0 && System.currentTimeMillis() > deadline) {
+          return cost(sx, sy, ex, ey, order, x, y, gaps);
+        }
+        while (tour.twoOpt(i) || tour.orOpt(i)) {
+          improved = true;
+        }
+      }
+      if (tour.reverseTail()) {
+        improved = true;
+      }
+    }
+    return cost(sx, sy, ex, ey, order, x, y, gaps);
+  }
+
+  /**
+   * Sums up the pen-up travel of an ordering
+   *
+   * @return Distance from the start position over all gaps between paths
+   */
+  public static double travel(float[] sx, float[] sy, float[] ex, float[] ey, int[] order,
+      float x, float y) {
+    return cost(sx, sy, ex, ey, order, x, y, new GapModel(0, 0, 0, null));
+  }
+
+  /**
+   * Sums up the cost of an ordering
+   *
+   * @param gaps
+   *            Cost of the gaps between paths
+   * @return Cost from the start position over all gaps between paths
+   */
+  public static double cost(float[] sx, float[] sy, float[] ex, float[] ey, int[] order,
+      float x, float y, GapModel gaps) {
+    double c = 0;
+    for (int k = 0; k < order.length; k++) {
+      int i = order[k];
+      boolean reversed = i < 0;
+      if (reversed) {
+        i = ~i;
+      }
+      float fx = reversed ? ex[i] : sx[i];
+      float fy = reversed ? ey[i] : sy[i];
+      c += gaps.cost(x, y, fx, fy);
+      x = reversed ? sx[i] : ex[i];
+      y = reversed ? sy[i] : ey[i];
+    }
+    return c;
+  }
+
+  /**
+   * Ordering under improvement. End point 2i is the start, 2i+1 the end of
+   * path i. The open tour starts at the pen position and ends anywhere, or
+   * at the end position if there is one.
+   */
+  private static class Tour {
+
+    private final float[] px;
+    private final float[] py;
+    private final int[] order;
+    private final int[] pos;  // position of a path in order
+    private final float x0, y0;
+    private final float x1, y1;  // NaN for an open end
+    private final GapModel gaps;
+    private final int n;
+    private int[] neighbours;
+    private final int[] run = new int[OR_OPT_LENGTH];
+
+    Tour(float[] sx, float[] sy, float[] ex, float[] ey, int[] order, float x, float y,
+        float endX, float endY, GapModel gaps) {
+      this.order = order;
+      n = order.length;
+      px = new float[2 * n];
+      py = new float[2 * n];
+      pos = new int[n];
+      for (int i = 0; i < n; i++) {
+        px[2 * i] = sx[i];
+        py[2 * i] = sy[i];
+        px[2 * i + 1] = ex[i];
+        py[2 * i + 1] = ey[i];
+      }
+      for (int k = 0; k < n; k++) {
+        pos[path(k)] = k;
+      }
+      x0 = x;
+      y0 = y;
+      x1 = endX;
+      y1 = endY;
+      this.gaps = gaps;
+    }
+
+    /**
+     * Collects the closest end points of other paths for every end point
+     *
+     * @return False if the deadline passed
+     */
+    boolean findNeighbours(long deadline) {
+      KdTree tree = new KdTree(px, py, 2 * n);
+      neighbours = new int[2 * n * NEIGHBOURS];
+      int[] found = new int[NEIGHBOURS + 2];
+      for (int p = 0; p < 2 * n; p++) {
+        if ((p & 0xFFF) == 0 && System.currentTimeMillis() > deadline) {
+          return false;
+        }
+        int count = tree.nearest(px[p], py[p], NEIGHBOURS + 2, found);
+        int m = 0;
+        for (int k = 0; k < count && m < NEIGHBOURS; k++) {
+          if ((found[k] >> 1) != (p >> 1)) {
+            neighbours[p * NEIGHBOURS + m++] = found[k];
+          }
+        }
+        for (; m < NEIGHBOURS; m++) {
+          neighbours[p * NEIGHBOURS + m] = -1;
+        }
+      }
+      return true;
+    }
+
+    private int path(int k) {
+      int o = order[k];
+      return (o < 0) ? ~o : o;
+    }
+
+    /** End point the pen leaves the path at position k from, -1 for the start. */
+    private int exit(int k) {
+      if (k < 0) {
+        return -1;
+      }
+      int o = order[k];
+      return (o < 0) ? 2 * ~o : 2 * o + 1;
+    }
+
+    /** End point the pen enters the path at position k at, -1 behind the end. */
+    private int entry(int k) {
+      if (k >= n) {
+        return -1;
+      }
+      int o = order[k];
+      return (o < 0) ? 2 * ~o + 1 : 2 * o;
+    }
+
+    /**
+     * Cost from a to b, to the end position or nothing if b is behind the
+     * end of the tour
+     */
+    private double dist(int a, int b) {
+      if (b < 0 && Float.isNaN(x1)) {
+        return 0;
+      }
+      return gaps.cost((a < 0) ? x0 : px[a], (a < 0) ? y0 : py[a], (b < 0) ? x1 : px[b],
+          (b < 0) ? y1 : py[b]);
+    }
+
+    /**
+     * Length from end point a to end point b, a lower bound of dist()
+     */
+    private double length(int a, int b) {
+      float dx = px[b] - px[a];
+      float dy = py[b] - py[a];
+      return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Tries 2-opt moves that replace the connection into position i
+     *
+     * @return True if a move was made
+     */
+    boolean twoOpt(int i) {
+      int a = exit(i - 1);
+      int b = entry(i);
+      double dab = dist(a, b);
+      if (dab < EPSILON) {
+        return false;
+      }
+      // reverse the path at i alone
+      int c = exit(i);
+      int d = entry(i + 1);
+      if (dab + dist(c, d) - dist(a, c) - dist(b, d) > EPSILON) {
+        reverse(i, i);
+        return true;
+      }
+      // a -> end of a later path j, reversing i..j
+      if (a >= 0) {
+        for (int k = 0; k < NEIGHBOURS; k++) {
+          c = neighbours[a * NEIGHBOURS + k];
+          if (c < 0) {
+            break;
+          }
+          if (length(a, c) >= dab) {
+            break;
+          }
+          double dac = dist(a, c);
+          if (dac >= dab) {
+            continue;
+          }
+          int j = pos[c >> 1];
+          if (j > i && j - i < MAX_REVERSAL && c == exit(j)) {
+            d = entry(j + 1);
+            if (dab + dist(c, d) - dac - dist(b, d) > EPSILON) {
+              reverse(i, j);
+              return true;
+            }
+          }
+        }
+      }
+      // start of an earlier path m -> b, reversing m..i-1
+      for (int k = 0; k < NEIGHBOURS; k++) {
+        c = neighbours[b * NEIGHBOURS + k];
+        if (c < 0) {
+          break;
+        }
+        if (length(c, b) >= dab) {
+          break;
+        }
+        double dcb = dist(c, b);
+        if (dcb >= dab) {
+          continue;
+        }
+        int m = pos[c >> 1];
+        if (m < i - 1 && i - m <= MAX_REVERSAL && c == entry(m)) {
+          int e = exit(m - 1);
+          if (dist(e, c) + dab - dist(e, a) - dcb > EPSILON) {
+            reverse(m, i - 1);
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Tries the 2-opt moves that reverse the tail of the tour, from any
+     * position up to the end. They only pay off for a tour with an end
+     * position, which the neighbour lists cannot find.
+     *
+     * @return True if a move was made
+     */
+    boolean reverseTail() {
+      if (Float.isNaN(x1)) {
+        return false;
+      }
+      int last = exit(n - 1);
+      double end = dist(last, -1);
+      double best = EPSILON;
+      int from = -1;
+      for (int i = 0; i < n; i++) {
+        int a = exit(i - 1);
+        int b = entry(i);
+        double gain = dist(a, b) + end - dist(a, last) - dist(b, -1);
+        if (gain > best) {
+          best = gain;
+          from = i;
+        }
+      }
+      if (from < 0) {
+        return false;
+      }
+      reverse(from, n - 1);
+      return true;
+    }
+
+    /**
+     * Tries to move the run of paths starting at position i somewhere else
+     *
+     * @return True if a move was made
+     */
+    boolean orOpt(int i) {
+      for (int len = 1; len <= OR_OPT_LENGTH && i + len <= n; len++) {
+        int first = entry(i);
+        int last = exit(i + len - 1);
+        int before = exit(i - 1);
+        int after = entry(i + len);
+        double removed = dist(before, first) + dist(last, after) - dist(before, after);
+        if (removed < EPSILON) {
+          continue;
+        }
+        // insert the run behind position k, as it is or reversed
+        for (int side = 0; side < 2; side++) {
+          int from = (side == 0) ? first : last;
+          int to = (side == 0) ? last : first;
+          for (int k = 0; k < NEIGHBOURS; k++) {
+            int c = neighbours[from * NEIGHBOURS + k];
+            if (c < 0) {
+              break;
+            }
+            if (length(c, from) >= removed) {
+              break;
+            }
+            double dc = dist(c, from);
+            if (dc >= removed) {
+              continue;
+            }
+            int j = pos[c >> 1];
+            if (j >= i && j < i + len) {
+              continue;
+            }
+            // c is the exit of j: the run follows j, entered at from
+            // c is the entry of j: the run precedes j, left at from
+            int gap = (c == exit(j)) ? j : j - 1;
+            if (gap >= i - 1 && gap < i + len) {
+              continue;
+            }
+            int e = exit(gap);
+            int f = entry(gap + 1);
+            double added = (c == exit(j))
+              ? dc + dist(to, f) - dist(e, f)
+              : dist(e, to) + dc - dist(e, f);
+            if (added < removed - EPSILON) {
+              // entering at first keeps the direction of the run
+              boolean flip = (c == exit(j)) ? (side == 1) : (side == 0);
+              move(i, len, gap, flip);
+              return true;
+            }
+          }
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Reverses the paths at positions i..j, each one drawn the other way
+     */
+    private void reverse(int i, int j) {
+      while (i < j) {
+        int t = order[i];
+        order[i] = ~order[j];
+        order[j] = ~t;
+        pos[path(i)] = i;
+        pos[path(j)] = j;
+        i++;
+        j--;
+      }
+      if (i == j) {
+        order[i] = ~order[i];
+      }
+    }
+
+    /**
+     * Moves the run of len paths at position i behind position gap
+     */
+    private void move(int i, int len, int gap, boolean flip) {
+      for (int k = 0; k < len; k++) {
+        run[k] = flip ? ~order[i + len - 1 - k] : order[i + k];
+      }
+      int to;
+      if (gap < i) {
+        System.arraycopy(order, gap + 1, order, gap + 1 + len, i - gap - 1);
+        to = gap + 1;
+        System.arraycopy(run, 0, order, to, len);
+        for (int k = to; k < i + len; k++) {
+          pos[path(k)] = k;
+        }
+      }
+      else {
+        System.arraycopy(order, i + len, order, i, gap - i - len + 1);
+        to = gap - len + 1;
+        System.arraycopy(run, 0, order, to, len);
+        for (int k = i; k <= gap; k++) {
+          pos[path(k)] = k;
+        }
+      }
+    }
+  }
+
+}
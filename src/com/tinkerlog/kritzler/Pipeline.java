@@ -0,0 +1,136 @@
+package com.tinkerlog.kritzler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configurable sequence of passes that turns a shape into instructions.
+ * Every pass is measured: wall time, bytes allocated by the calling thread,
+ * and commands and pen travel of the job before and after it.
+ */
+public class Pipeline {
+
+  private final List<Pass> passes = new ArrayList<Pass>();
+  private final List<String> disabled = new ArrayList<String>();
+  private final List<Metrics> metrics = new ArrayList<Metrics>();
+
+  /**
+   * Measurements of a single pass
+   */
+  public static class Metrics {
+    public String name;
+    public long nanos;
+    public long allocated;  // bytes, -1 if the JVM cannot tell
+    public int commandsBefore;
+    public int commandsAfter;
+    public double[] travelBefore;  // pen down, pen up
+    public double[] travelAfter;
+
+    public String toString() {
+      return name + ": " + nanos / 1000000 + " ms, "
+          + ((allocated < 0) ? "?" : String.valueOf(allocated / 1024)) + " kB, commands "
+          + commandsBefore + " -> " + commandsAfter + ", pen down " + (long) travelBefore[0]
+          + " -> " + (long) travelAfter[0] + ", pen up " + (long) travelBefore[1] + " -> "
+          + (long) travelAfter[1];
+    }
+  }
+
+  /**
+   * Appends a pass
+   * 
+   * @param pass
+   *            Pass to run after the ones added before
+   * @return This pipeline
+   */
+  public Pipeline add(Pass pass) {
+    passes.add(pass);
+    return this;
+  }
+
+  /**
+   * Switches a pass on or off
+   * 
+   * @param name
+   *            Name of the pass
+   * @param enabled
+   *            False to skip the pass
+   */
+  public void setEnabled(String name, boolean enabled) {
+    disabled.remove(name);
+    if (!enabled) {
+      disabled.add(name);
+    }
+  }
+
+  /**
+   * Tells whether a pass runs
+   * 
+   * @param name
+   *            Name of the pass
+   * @return False if the pass is switched off
+   */
+  public boolean isEnabled(String name) {
+    return !disabled.contains(name);
+  }
+
+  /**
+   * Returns the passes in the order they run
+   * 
+   * @return The passes, including the disabled ones
+   */
+  public List<Pass> getPasses() {
+    return passes;
+  }
+
+  /**
+   * Runs all enabled passes on a job and prints their metrics
+   * 
+   * @param job
+   *            Job to process
+   */
+  public void run(PlotJob job) {
+    metrics.clear();
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    for (int i = 0; i < passes.size(); i++) {
+      Pass pass = passes.get(i);
+      if (!isEnabled(pass.getName())) {
+        continue;
+      }
+      Metrics m = new Metrics();
+      m.name = pass.getName();
+      m.commandsBefore = job.getCommands();
+      m.travelBefore = job.getTravel();
+      long allocated = allocatedBytes(threads);
+      long start = System.nanoTime();
+      pass.run(job);
+      m.nanos = System.nanoTime() - start;
+      m.allocated = (allocated < 0) ? -1 : allocatedBytes(threads) - allocated;
+      m.commandsAfter = job.getCommands();
+      m.travelAfter = job.getTravel();
+      metrics.add(m);
+      System.out.println(m);
+    }
+  }
+
+  /**
+   * Returns the metrics of the last run
+   * 
+   * @return One entry per pass that ran
+   */
+  public List<Metrics> getMetrics() {
+    return metrics;
+  }
+
+  private static long allocatedBytes(ThreadMXBean threads) {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+      if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled()) {
+        return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+}
@@ -0,0 +1,108 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * Predicted duration and pen travel of a job. The instructions are mapped
+ * onto the plotter like the Kritzler does (scale, translation, clamping) and
+ * converted to motor steps with the firmware's own geometry, see Polargraph.
+ * The time is that of the stepper state machine alone, i.e. assumes the
+ * command ring never runs empty.
+ */
+public class PlotEstimate {
+
+  /** Time the motors and the servo need, in microseconds. */
+  public long micros;
+
+  /** Pen travel in plotter units (1/10 mm). */
+  public double penDownDistance;
+  public double penUpDistance;
+
+  /** Number of times the pen is lifted. */
+  public int penLifts;
+
+  /** Number of Bresenham iterations over all moves. */
+  public long steps;
+
+  /**
+   * Estimates a job in a single pass over its instructions
+   *
+   * @param instructions
+   *            Instructions of the job
+   * @param tx
+   *            X translation, as passed to Kritzler.translate()
+   * @param ty
+   *            Y translation
+   * @param scale
+   *            Scale factor, as passed to Kritzler.setScale()
+   * @return The estimate
+   */
+  public static PlotEstimate estimate(InstructionSource instructions, float tx, float ty,
+      float scale) {
+    PlotEstimate e = new PlotEstimate();
+    int x = Polargraph.START_X;
+    int y = Polargraph.START_Y;
+    int m1 = Polargraph.stepsM1(x, y);
+    int m2 = Polargraph.stepsM2(x, y);
+    boolean penDown = false;
+    long ticks = 0;
+    for (int k = 0; k < instructions.size(); k++) {
+      int nx = (int) (instructions.getX(k) * scale);
+      int ny = (int) (instructions.getY(k) * scale);
+      if (instructions.isRelative(k)) {
+        nx += x;
+        ny += y;
+      }
+      else {
+        nx += tx;
+        ny += ty;
+      }
+      nx = Polargraph.clampX(nx);
+      ny = Polargraph.clampY(ny);
+
+      boolean down = instructions.isLine(k);
+      if (down != penDown) {
+        penDown = down;
+        ticks += Polargraph.servoTicks();
+        if (!down) {
+          e.penLifts++;
+        }
+      }
+      int n1 = Polargraph.stepsM1(nx, ny);
+      int n2 = Polargraph.stepsM2(nx, ny);
+      int steps = Math.max(Math.abs(n1 - m1), Math.abs(n2 - m2));
+      ticks += Polargraph.moveTicks(steps);
+      e.steps += steps;
+
+      double d = Math.sqrt((double) (nx - x) * (nx - x) + (double) (ny - y) * (ny - y));
+      if (down) {
+        e.penDownDistance += d;
+      }
+      else {
+        e.penUpDistance += d;
+      }
+      x = nx;
+      y = ny;
+      m1 = n1;
+      m2 = n2;
+    }
+    e.micros = ticks * Polargraph.TICK_MICROS;
+    return e;
+  }
+
+  /**
+   * Returns the duration as h:mm:ss
+   *
+   * @return Formatted duration
+   */
+  public String getDuration() {
+    long s = micros / 1000000;
+    return (s / 3600) + ":" + ((s / 60 % 60 < 10) ? "0" : "") + (s / 60 % 60) + ":"
+        + ((s % 60 < 10) ? "0" : "") + (s % 60);
+  }
+
+  public String toString() {
+    return getDuration() + ", pen down " + Math.round(penDownDistance / 1000) / 10.0
+        + " m, pen up " + Math.round(penUpDistance / 1000) / 10.0 + " m, " + penLifts
+        + " pen lifts";
+  }
+
+}
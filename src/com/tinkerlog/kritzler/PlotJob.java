@@ -0,0 +1,110 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * Buffer the passes of a Pipeline hand their work on in: the shape, its
+ * paths as polylines while they are being optimized, and the instructions
+ * once they are encoded. Coordinates are in shape units, scale and the
+ * translation convert them to plotter units.
+ */
+public class PlotJob {
+
+  /** Shape to plot. */
+  public SvgShape shape;
+
+  /** Plotter units per shape unit. */
+  public float scale;
+
+  /** Translation on the plotter, in plotter units. */
+  public float tx;
+  public float ty;
+
+  /** The paths as polylines, in drawing order once ordered. */
+  public PathIndex paths;
+
+  /** True for paths to be drawn from their last point, null if none is. */
+  public boolean[] reversed;
+
+  /** Area gaps may be drawn through. */
+  public ShapeMask mask;
+
+  /** Encoded job, null before the paths are encoded. */
+  public InstructionBuffer instructions;
+
+  /**
+   * Creates a job
+   * 
+   * @param shape
+   *            Shape to plot
+   * @param scale
+   *            Plotter units per shape unit
+   * @param tx
+   *            X translation, as passed to Kritzler.translate()
+   * @param ty
+   *            Y translation
+   */
+  public PlotJob(SvgShape shape, float scale, float tx, float ty) {
+    this.shape = shape;
+    this.scale = scale;
+    this.tx = tx;
+    this.ty = ty;
+  }
+
+  /**
+   * Returns the number of commands the job currently amounts to: the
+   * instructions once encoded, before that the points of the paths
+   * 
+   * @return Number of commands
+   */
+  public int getCommands() {
+    if (instructions != null) {
+      return instructions.size();
+    }
+    return (paths == null) ? 0 : paths.getPointCount();
+  }
+
+  /**
+   * Measures the pen travel of the job as it is now
+   * 
+   * @return Pen-down and pen-up distance in plotter units
+   */
+  public double[] getTravel() {
+    double down = 0;
+    double up = 0;
+    if (instructions != null) {
+      float x = 0;
+      float y = 0;
+      for (int k = 0; k < instructions.size(); k++) {
+        boolean rel = instructions.isRelative(k);
+        float nx = rel ? x + instructions.getX(k) : instructions.getX(k);
+        float ny = rel ? y + instructions.getY(k) : instructions.getY(k);
+        double d = Math.sqrt((nx - x) * (nx - x) + (ny - y) * (ny - y));
+        if (instructions.isLine(k)) {
+          down += d;
+        }
+        else if (k > 0) {
+          up += d;
+        }
+        x = nx;
+        y = ny;
+      }
+    }
+    else if (paths != null) {
+      PathIndex p = paths;
+      float x = 0;
+      float y = 0;
+      for (int i = 0; i < p.size; i++) {
+        down += p.length[i];
+        boolean back = (reversed != null && reversed[i]);
+        float fx = back ? p.ex[i] : p.sx[i];
+        float fy = back ? p.ey[i] : p.sy[i];
+        if (i > 0) {
+          up += Math.sqrt((fx - x) * (fx - x) + (fy - y) * (fy - y));
+        }
+        x = back ? p.sx[i] : p.ex[i];
+        y = back ? p.sy[i] : p.ey[i];
+      }
+    }
+    return new double[] { down * scale, up * scale };
+  }
+
+}
@@ -2,18 +2,14 @@ package com.tinkerlog.kritzler;
 
 
 import geomerative.RG;
-import geomerative.RPath;
 import geomerative.RPoint;
-import geomerative.RShape;
 
 import controlP5.*;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import com.tinkerlog.kritzler.FillSvg.MyPoint;
@@ -28,6 +24,14 @@ public class Plotter extends PApplet {
   private static final String BUFFER_ACC_PATH = "buffer_acc/";
   private static final String BUFFER_DONE_PATH = "buffer_done/";
   private static final String BUFFER_DENIED_PATH = "buffer_denied/";
+  private static final String JOURNAL_PATH = "kritzler.journal";
+  private static final String CACHE_PATH = "buffer_cache/";
+  // size of the compiled jobs kept in CACHE_PATH, in bytes
+  private static final long CACHE_SIZE = 256L << 20;
+  // version of the passes in createPipeline(), part of the job key: count
+  // it up when a pass changes what it produces, so jobs compiled by the
+  // old passes are not taken from the cache
+  private static final int PIPELINE_VERSION = 4;
     
   private static final int MAX_PLOTTER_X = 7000;
   private static final int MAX_PLOTTER_Y = 8000;
@@ -53,11 +57,12 @@ public class Plotter extends PApplet {
   private static final int STATE_RESUME = 8;
   private static final int STATE_ABORTING = 9;
   private static final int STATE_FINISHING = 10;
+  private static final int STATE_RESUME_QUERY = 11;
   private int state = STATE_START;
   private int oldState = STATE_START;
   private static final String[] STATES = {
     "NONE", "START", "WAITING", "PLOTTING_SCREEN", "WAITING_INPUT", "SETUP_PLOTTER", "PLOTTING", "PAUSED", "RESUME",
-    "ABORTING", "FINISHING"
+    "ABORTING", "FINISHING", "RESUME_QUERY"
   };
   
   private static final int BACKGROUND_STD = 0xFFA0A0A0;
@@ -76,11 +81,26 @@ public class Plotter extends PApplet {
   private static final float STROKE_WEIGHT_SHAPE = 1.0F;
   private static final int STROKE_SHAPE = 0xFF808080;
   private static final float DELTA_STEP = 20.0F;
-  private static final float MAX_COMPARE_DELTA = 70.0F;
+  // time to spend on improving the path order
+  private static final long SORT_BUDGET_MILLIS = 2000;
+  // paths with end points closer than this (plotter units) are drawn
+  // without lifting the pen
+  private static final float JOIN_TOLERANCE = 5.0F;
+  // points closer than this (plotter units) to the line through their
+  // neighbours are dropped
+  private static final float SIMPLIFY_TOLERANCE = 1.0F;
+  // gaps up to this length (plotter units) are drawn through if that stays
+  // inside the closed paths of the shape
+  private static final float BRIDGE_DISTANCE = 20.0F;
+  // segments closer than this (plotter units) along an earlier one are
+  // drawn only once
+  private static final float OVERLAP_TOLERANCE = 2.0F;
   
   float screenScale = 0.0F;
   float plotterScale = 1.0F;
   float svgScale = 5.0F;
+  // cost of a pen lift for the path order, as pen travel in plotter units
+  float liftPenalty = Polargraph.travelDistance(Polargraph.liftMicros());
 
   float dx, dy = 0.0F;
   
@@ -94,10 +114,14 @@ public class Plotter extends PApplet {
   private DropdownList filesList;
   private Textfield statusField;
   private PGraphics graphics;
-  private RShape shape;
+  private SvgShape shape;
   private Serial port;
   private Kritzler plotter;
-  private List<Instruction> currentInstructions;
+  private ProgressJournal journal;
+  private JobCache jobCache;
+  private Pipeline pipeline;
+  private InstructionSource currentInstructions;
+  private int resumeIndex;
   private String[] ports;
   private String[] fileNames;
   private String currentFileName;
@@ -107,6 +131,7 @@ public class Plotter extends PApplet {
   private boolean buttonsEnabled = false;
   private boolean plotting = false;
   private boolean useCache = false;
+  private boolean hostKinematics = false;
 
   private boolean drawGrid = true;
   private boolean drawBoundingBox = true;
@@ -121,9 +146,21 @@ public class Plotter extends PApplet {
    */
   public void setup() {
 
-    // Set up the Geomerative library
+    // Set up the Geomerative library, for SVG files SvgShape cannot read
     RG.init(this);
 
+    // Open the journal that allows to resume interrupted jobs
+    try {
+      journal = new ProgressJournal(new File(JOURNAL_PATH));
+    }
+    catch (IOException e) {
+      println("no journal: " + e.getMessage());
+    }
+    registerDispose(this);
+
+    jobCache = new JobCache(new File(CACHE_PATH), CACHE_SIZE);
+    pipeline = createPipeline();
+
     // Determine the screen scale and window size
     screenScale = (MAX_SCREEN_Y - 2F * SCREEN_PADDING) / MAX_PLOTTER_Y;
     int xsize = (int)(MAX_PLOTTER_X * screenScale) + 2 * SCREEN_PADDING;
@@ -310,11 +347,32 @@ public class Plotter extends PApplet {
   }
   
   public void startSerial(String portName) {
+    if (plotter != null) {
+      plotter.stop();
+      printPlotterMessages();
+    }
     if (port != null) {
       port.clear();
       port.stop();
     }
     port = new Serial(this, portName, 57600);    
+    // one Kritzler per connection, it talks to the firmware from start up on
+    plotter = new Kritzler(this, port);
+    plotter.setJournal(journal);
+    plotter.start();
+  }
+
+  /**
+   * Stops the Kritzler and releases the journal when the sketch ends,
+   * registered in setup()
+   */
+  public void dispose() {
+    if (plotter != null) {
+      plotter.stop();
+    }
+    if (journal != null) {
+      journal.close();
+    }
   }
 
   public void start(int value) {
@@ -386,6 +444,7 @@ public class Plotter extends PApplet {
     
     pushMatrix();    
     oldState = state;
+    printPlotterMessages();
 
     switch (state) {
 
@@ -430,29 +489,48 @@ public class Plotter extends PApplet {
     // Generate Instructions from the SVG file, then set up the Kritzler
     // object
     case STATE_SETUP_PLOTTER:
-      currentInstructions = new ArrayList<Instruction>();
-      List<RPath> paths = new ArrayList<RPath>();
-      getAllPaths(paths, shape);
-      paths = sortPaths(paths);
-      convertToInstructions(currentInstructions, paths);
-      setupPlotter(currentInstructions);
-      state = STATE_PLOTTING;
+      currentInstructions = compileJob();
+      println("estimated plot time: "
+          + PlotEstimate.estimate(currentInstructions, START_X + dx, START_Y + dy, plotterScale));
+      resumeIndex = 0;
+      if (journal != null) {
+        long hash = ProgressJournal.hash(currentInstructions, START_X + dx, START_Y + dy, plotterScale);
+        resumeIndex = journal.getResumeIndex(hash, currentInstructions.size());
+        // the last acknowledged commands may not have been drawn
+        resumeIndex = Math.max(0, resumeIndex - Kritzler.FIRMWARE_QUEUE);
+      }
+      if (resumeIndex > 0) {
+        state = STATE_RESUME_QUERY;
+      }
+      else {
+        state = setupPlotter(currentInstructions, 0) ? STATE_PLOTTING : STATE_WAITING_INPUT;
+      }
+      break;
+
+    // The same job was interrupted before, waiting for 'y' or 'n'
+    case STATE_RESUME_QUERY:
+      status("resume at " + resumeIndex + "? y/n");
       break;
 
     case STATE_PAUSED:
       status("paused");
+      if (plotter != null) {
+        plotter.setPaused(true);
+      }
       drawCanvas();
       break;
       
     case STATE_RESUME:
+      if (plotter != null) {
+        plotter.setPaused(false);
+      }
       drawCanvas();
       state = STATE_PLOTTING;
       break;
       
-    // Actively plotting
+    // Actively plotting, serial I/O runs in the Kritzler's own thread
     case STATE_PLOTTING:
       status("plotting ...");
-      plotter.checkSerial();
       // When finished drawing, return to the coordinates specified by
       // HOME_X and HOME_Y
       if (plotter.isFinished()) {
@@ -474,6 +552,9 @@ public class Plotter extends PApplet {
       
     case STATE_ABORTING:
       status("aborted");
+      if (plotter != null) {
+        plotter.abort();
+      }
       plotting = false;
       useCache = false;
       shape = null;
@@ -490,17 +571,85 @@ public class Plotter extends PApplet {
     popMatrix();
   }
   
+  /**
+   * Print the diagnostic messages queued up by the Kritzler's I/O thread
+   */
+  private void printPlotterMessages() {
+    if (plotter != null) {
+      plotter.printMessages();
+    }
+  }
+
+  /**
+   * Compiles the current shape, or maps it from the job cache if it was
+   * compiled with the same settings before
+   * 
+   * @return Instructions of the job
+   */
+  private InstructionSource compileJob() {
+    PlotJob job = new PlotJob(shape, plotterScale, START_X + dx, START_Y + dy);
+    long key = getJobKey(job);
+    InstructionSource cached = jobCache.get(key);
+    if (cached != null) {
+      println("cached job " + Long.toHexString(key));
+      return cached;
+    }
+    pipeline.run(job);
+    try {
+      // plot from the cache right away, so a resumed job has the same
+      // coordinates whether it is compiled again or not
+      return jobCache.put(key, job.instructions);
+    }
+    catch (IOException e) {
+      println("cannot cache job: " + e.getMessage());
+      return job.instructions;
+    }
+  }
+
+  /**
+   * Computes the cache key of a job: the shape as it is transformed now,
+   * which covers svgScale and flips, the placement on the plotter, the
+   * tolerances, the passes that are enabled and the version of the passes
+   * 
+   * @param job
+   *            Job before it is compiled
+   * @return Hash value
+   */
+  private long getJobKey(PlotJob job) {
+    long h = ProgressJournal.mix(job.shape.hash(), PIPELINE_VERSION);
+    float[] params = { job.scale, job.tx, job.ty, JOIN_TOLERANCE, SIMPLIFY_TOLERANCE,
+        BRIDGE_DISTANCE, OVERLAP_TOLERANCE, liftPenalty, SORT_BUDGET_MILLIS };
+    for (int i = 0; i < params.length; i++) {
+      h = ProgressJournal.mix(h, Float.floatToIntBits(params[i]));
+    }
+    List<Pass> passes = pipeline.getPasses();
+    for (int i = 0; i < passes.size(); i++) {
+      if (pipeline.isEnabled(passes.get(i).getName())) {
+        h = ProgressJournal.mix(h, passes.get(i).getName().hashCode());
+      }
+    }
+    return h;
+  }
+
   /**
    * Set up the Kritzler object
    * 
    * @param instructions
    *            Instruction set to use
+   * @param startIndex
+   *            Index of the first instruction to plot, 0 for the whole job
+   * @return False if the Kritzler did not take the job
    */
-  public void setupPlotter(List<Instruction> instructions) {
-    plotter = new Kritzler(this, port);
-    plotter.setInstructions(instructions);
+  public boolean setupPlotter(InstructionSource instructions, int startIndex) {
     plotter.translate(START_X + dx, START_Y + dy);
     plotter.setScale(plotterScale);
+    plotter.setHostKinematics(hostKinematics);
+    plotter.setPaused(false);
+    if (!plotter.setInstructions(instructions, startIndex)) {
+      println("job not taken, the Kritzler is still taking over earlier jobs");
+      return false;
+    }
+    return true;
   }
 
   /**
@@ -567,20 +716,20 @@ public class Plotter extends PApplet {
     // Draw the bounding box of the current shape
     if (drawBoundingBox && shape != null) {
       // Bounding box
-      RPoint bounds[] = shape.getBoundsPoints();
+      float bounds[] = shape.getBounds();
       graphics.strokeWeight(STROKE_WEIGHT_GRID);
       graphics.stroke(255,0,0);
-      graphics.line( bounds[0].x, bounds[0].y, bounds[1].x, bounds[1].y );
-      graphics.line( bounds[1].x, bounds[1].y, bounds[2].x, bounds[2].y );
-      graphics.line( bounds[2].x, bounds[2].y, bounds[3].x, bounds[3].y );
-      graphics.line( bounds[3].x, bounds[3].y, bounds[0].x, bounds[0].y );
+      graphics.line( bounds[0], bounds[1], bounds[2], bounds[1] );
+      graphics.line( bounds[2], bounds[1], bounds[2], bounds[3] );
+      graphics.line( bounds[2], bounds[3], bounds[0], bounds[3] );
+      graphics.line( bounds[0], bounds[3], bounds[0], bounds[1] );
 
       // Center cross hairs
       RPoint center = shape.getCenter();
-      graphics.line( center.x, bounds[0].y, center.x, bounds[0].y - 200 );
-      graphics.line( center.x, bounds[3].y, center.x, bounds[3].y + 200 );
-      graphics.line( bounds[0].x, center.y, bounds[0].x - 200, center.y );
-      graphics.line( bounds[1].x, center.y, bounds[1].x + 200, center.y );
+      graphics.line( center.x, bounds[1], center.x, bounds[1] - 200 );
+      graphics.line( center.x, bounds[3], center.x, bounds[3] + 200 );
+      graphics.line( bounds[0], center.y, bounds[0] - 200, center.y );
+      graphics.line( bounds[2], center.y, bounds[2] + 200, center.y );
     }
     
     // Draw the SVG content
@@ -594,7 +743,7 @@ public class Plotter extends PApplet {
   }
   
   public void drawBot() {
-    if (plotter == null) {
+    if (plotter == null || currentInstructions == null) {
       return;
     }
     noStroke();
@@ -609,9 +758,9 @@ public class Plotter extends PApplet {
       fill(PLOTTER_FINISHED);
       break;
     }
-    Instruction i = currentInstructions.get(plotter.getCurrentInstructionIndex());
+    int i = plotter.getCurrentInstructionIndex();
     ellipseMode(CENTER);    
-    ellipse(i.x, i.y, 200, 200);
+    ellipse(currentInstructions.getX(i), currentInstructions.getY(i), 200, 200);
   }  
 
   /**
@@ -620,109 +769,323 @@ public class Plotter extends PApplet {
    * @param shape
    *            Shape to draw
    */
-  public void drawShape(PGraphics g, RShape shape) {
-    // Recurse through any children of this shape
-    for (int i = 0; i < shape.countChildren(); i++) {
-      RShape s = shape.children[i];
-      drawShape(g, s);
-    }
-
-    // Iterate through each path of the shape, drawing them to the screen
-    for (int i = 0; i < shape.countPaths(); i++) {
-      // Get the points of the current path
-      RPath p = shape.paths[i];
-      RPoint[] points = p.getPoints();
-
-      // Connect each of the points using lines
-      for (int k = 0; k < points.length - 1; k++) {
-        g.line(points[k].x, points[k].y, points[k + 1].x, points[k + 1].y);
+  public void drawShape(PGraphics g, SvgShape shape) {
+    // Connect the points of each path using lines
+    InstructionBuffer lines = shape.flatten();
+    for (int k = 1; k < lines.size(); k++) {
+      if (lines.isLine(k)) {
+        g.line(lines.getX(k - 1), lines.getY(k - 1), lines.getX(k), lines.getY(k));
       }
     }
   }
 
   /**
-   * Convert SVG file contents into Instruction objects
+   * Generate Instructions for a list of paths. The pen stays down across
+   * the gaps the gap model draws through, see createGaps()
    * 
    * @param instructions
-   *            Resulting List of Instruction objects
-   * @param shape
-   *            RShape to proces
+   *            Buffer to add the Instructions to
+   * @param paths
+   *            The paths in drawing order
+   * @param reversed
+   *            True for paths to be drawn from their last point, as
+   *            returned by sortPaths()
+   * @param gaps
+   *            Gaps the pen is dragged across, the model the paths were
+   *            ordered with
    */
-  public void convertToInstructions(List<Instruction> instructions, RShape shape) {
-    // Recurse through any children of current shape
-    for (int i = 0; i < shape.countChildren(); i++) {
-      RShape s = shape.children[i];
-      convertToInstructions(instructions, s);
-    }
-
-    // Generate Instruction objects for every path of shape
-    for (int i = 0; i < shape.countPaths(); i++) {
-      // Get the first point of this path
-      RPath p = shape.paths[i];
-      RPoint[] points = p.getPoints();
-      RPoint p1 = points[0];
-
-      // Move to that point
-      instructions.add(new Instruction(Instruction.MOVE_ABS, p1.x, p1.y));
+  public void convertToInstructions(InstructionBuffer instructions, PathIndex paths,
+      boolean[] reversed, GapModel gaps) {
+    float tolerance = JOIN_TOLERANCE / plotterScale;
+    int bridged = 0;
+    float lastX = 0;
+    float lastY = 0;
+    for (int i = 0; i < paths.size; i++) {
+      int from = paths.offset[i];
+      int to = paths.offset[i + 1];
+      int first = reversed[i] ? to - 1 : from;
+      int step = reversed[i] ? -1 : 1;
+      float x1 = paths.xs[first];
+      float y1 = paths.ys[first];
+
+      // Move to the first point, unless the previous path ends there or
+      // the gap can be drawn through
+      float dx = x1 - lastX;
+      float dy = y1 - lastY;
+      float d = (float) Math.sqrt(dx * dx + dy * dy);
+      if (i == 0 || !gaps.isDrawn(lastX, lastY, x1, y1)) {
+        instructions.add(Instruction.MOVE_ABS, x1, y1);
+      }
+      else if (d > 0) {
+        instructions.add(Instruction.LINE_ABS, x1, y1);
+        if (d > tolerance) {
+          bridged++;
+        }
+      }
 
-      // Draw lines to any subsequent points
-      for (int k = 0; k < points.length - 1; k++) {
-        RPoint p2 = points[k];
-        instructions.add(new Instruction(Instruction.LINE_ABS, p2.x, p2.y));
+      // Draw lines to all subsequent points
+      for (int k = first + step; k >= from && k < to; k += step) {
+        instructions.add(Instruction.LINE_ABS, paths.xs[k], paths.ys[k]);
       }
-    }    
+      lastX = reversed[i] ? paths.sx[i] : paths.ex[i];
+      lastY = reversed[i] ? paths.sy[i] : paths.ey[i];
+    }
+    println(bridged + " gaps bridged");
   }
 
-  public void convertToInstructions(List<Instruction> instructions, List<RPath> paths) {
-    for (RPath p : paths) {
-      RPoint[] points = p.getPoints();
-      RPoint p1 = points[0];
-
-      // Move to that point
-      instructions.add(new Instruction(Instruction.MOVE_ABS, p1.x, p1.y));
+  /**
+   * Simplifies every path to within SIMPLIFY_TOLERANCE, see
+   * PolylineSimplifier
+   * 
+   * @param paths
+   *            The paths
+   * @return The simplified paths
+   */
+  public PathIndex simplifyPaths(PathIndex paths) {
+    float simplify = SIMPLIFY_TOLERANCE / plotterScale;
+    PathIndex result = new PathIndex(paths.size, paths.getPointCount());
+    float[] xs = new float[0];
+    float[] ys = new float[0];
+    for (int i = 0; i < paths.size; i++) {
+      int n = paths.getPointCount(i);
+      if (xs.length < n) {
+        xs = new float[Math.max(n, 2 * xs.length)];
+        ys = new float[xs.length];
+      }
+      System.arraycopy(paths.xs, paths.offset[i], xs, 0, n);
+      System.arraycopy(paths.ys, paths.offset[i], ys, 0, n);
+      int m = PolylineSimplifier.simplify(xs, ys, n, simplify);
+      result.addPath(xs, ys, 0, m);
+    }
+    return result;
+  }
 
-      // Draw lines to any subsequent points
-      for (int k = 0; k < points.length - 1; k++) {
-        RPoint p2 = points[k];
-        instructions.add(new Instruction(Instruction.LINE_ABS, p2.x, p2.y));
-      }      
+  /**
+   * Collects the closed paths, their inside may be drawn through when
+   * bridging a gap
+   * 
+   * @param paths
+   *            All paths
+   * @return Area inside the closed paths
+   */
+  public ShapeMask createMask(PathIndex paths) {
+    float tolerance = JOIN_TOLERANCE / plotterScale;
+    ShapeMask mask = new ShapeMask();
+    for (int i = 0; i < paths.size; i++) {
+      float dx = paths.ex[i] - paths.sx[i];
+      float dy = paths.ey[i] - paths.sy[i];
+      if (dx * dx + dy * dy <= tolerance * tolerance) {
+        mask.add(paths.xs, paths.ys, paths.offset[i], paths.getPointCount(i));
+      }
     }
+    return mask;
   }
   
-  public List<RPath> sortPaths(List<RPath> paths) {
-    println("sorting paths ...");
-    List<RPath> resultPath = new ArrayList<RPath>();
-    PathComparator comparator = new PathComparator();
-    RPoint tl = shape.getTopLeft();
-    RPoint br = shape.getBottomRight();
-    
-    float y = tl.y;
-    while (y < br.y) {
-      List<RPath> sortedRow = new ArrayList<RPath>();
-      for (int i = 0; i < paths.size(); i++) {
-        RPath path = paths.get(i);
-        RPoint p = path.getPoints()[0];
-        if (p.y < y + MAX_COMPARE_DELTA && p.y >= y) {
-          sortedRow.add(path);
+  /**
+   * Creates the model of the gaps the pen is dragged across, shared by the
+   * path order and the encoder: gaps up to JOIN_TOLERANCE, and up to
+   * BRIDGE_DISTANCE where the gap lies inside the closed paths. Every other
+   * gap costs liftPenalty on top of its length.
+   * 
+   * @param mask
+   *            Area gaps may be drawn through, see createMask(), or null
+   * @return The model
+   */
+  public GapModel createGaps(ShapeMask mask) {
+    return new GapModel(JOIN_TOLERANCE / plotterScale, BRIDGE_DISTANCE / plotterScale,
+        liftPenalty / plotterScale, mask);
+  }
+
+  /**
+   * Joins paths that touch within JOIN_TOLERANCE into chains, see
+   * PathMerger. Every chain becomes one path, drawn without lifting the pen.
+   * A point where two paths meet exactly is kept once.
+   * 
+   * @param paths
+   *            The paths
+   * @return The chains
+   */
+  public PathIndex mergePaths(PathIndex paths) {
+    PathMerger.Chains chains = PathMerger.merge(paths.sx, paths.sy, paths.ex, paths.ey,
+        paths.size, JOIN_TOLERANCE / plotterScale);
+    PathIndex result = new PathIndex(chains.size(), paths.getPointCount());
+    for (int c = 0; c < chains.size(); c++) {
+      float lastX = 0;
+      float lastY = 0;
+      for (int j = chains.start[c]; j < chains.start[c + 1]; j++) {
+        int i = chains.items[j];
+        boolean back = i < 0;
+        if (back) {
+          i = ~i;
+        }
+        int from = paths.offset[i];
+        int to = paths.offset[i + 1];
+        for (int k = 0; k < to - from; k++) {
+          int q = back ? to - 1 - k : from + k;
+          float x = paths.xs[q];
+          float y = paths.ys[q];
+          if (k > 0 || j == chains.start[c] || x != lastX || y != lastY) {
+            result.addPoint(x, y);
+          }
+          lastX = x;
+          lastY = y;
         }
       }
-      Collections.sort(sortedRow, comparator);
-      resultPath.addAll(sortedRow);
-      y += MAX_COMPARE_DELTA;
+      result.endPath();
     }
-    return resultPath;
+    println(paths.size + " paths joined into " + chains.size() + " chains");
+    return result;
   }
-  
-  public void getAllPaths(List<RPath> paths, RShape shape) {
-    for (int i = 0; i < shape.countChildren(); i++) {
-      RShape s = shape.children[i];
-      getAllPaths(paths, s);
+
+  /**
+   * Orders the paths to keep pen-up travel short. The paths are ordered
+   * greedily, continuing with the closest path end from where the pen is,
+   * then the order is improved with 2-opt and Or-opt moves for
+   * SORT_BUDGET_MILLIS, see PathOrder. Jobs with more paths than fit into one
+   * tile are ordered in parallel tiles, see TiledOrder
+   * 
+   * @param paths
+   *            The paths to sort
+   * @param reversed
+   *            Filled with true for paths to be drawn backwards, one entry
+   *            per path
+   * @param gaps
+   *            Cost of the gaps between paths, see createGaps()
+   * @return Paths in drawing order
+   */
+  public PathIndex sortPaths(PathIndex paths, boolean[] reversed, GapModel gaps) {
+    println("sorting paths ...");
+    int n = paths.size;
+    float[] sx = paths.sx;
+    float[] sy = paths.sy;
+    float[] ex = paths.ex;
+    float[] ey = paths.ey;
+
+    // start at the top left corner of the paths
+    RPoint tl = new RPoint(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY);
+    for (int i = 0; i < n; i++) {
+      tl.x = Math.min(tl.x, paths.bounds[4 * i]);
+      tl.y = Math.min(tl.y, paths.bounds[4 * i + 1]);
     }
-    for (int i = 0; i < shape.countPaths(); i++) {
-      paths.add(shape.paths[i]);
+    int[] order;
+    if (n > TiledOrder.TILE_SIZE) {
+      order = TiledOrder.order(sx, sy, ex, ey, n, tl.x, tl.y, gaps,
+          Runtime.getRuntime().availableProcessors());
+      println("pen-up cost: " + (int) PathOrder.cost(sx, sy, ex, ey, order, tl.x, tl.y, gaps)
+          + " tiled");
     }
+    else {
+      order = PathOrder.nearestNeighbour(sx, sy, ex, ey, n, tl.x, tl.y);
+      double cost = PathOrder.cost(sx, sy, ex, ey, order, tl.x, tl.y, gaps);
+      double improved = PathOrder.improve(sx, sy, ex, ey, order, tl.x, tl.y, gaps,
+          SORT_BUDGET_MILLIS);
+      println("pen-up cost: " + (int) cost + " nearest neighbour, " + (int) improved
+          + " improved");
+    }
+
+    PathIndex result = new PathIndex(n, paths.getPointCount());
+    for (int k = 0; k < n; k++) {
+      int i = order[k];
+      reversed[k] = i < 0;
+      result.addPath(paths, (i < 0) ? ~i : i);
+    }
+    return result;
   }
   
+  /**
+   * Sets up the passes that turn the shape into instructions
+   * 
+   * @return The pipeline
+   */
+  public Pipeline createPipeline() {
+    Pipeline p = new Pipeline();
+    p.add(new Pass() {
+      public String getName() {
+        return "flatten";
+      }
+
+      public void run(PlotJob job) {
+        InstructionBuffer lines = job.shape.flatten();
+        int n = lines.getPathCount();
+        job.paths = new PathIndex(n, lines.size());
+        for (int i = 0; i < n; i++) {
+          int from = lines.getPathStart(i);
+          int to = (i + 1 < n) ? lines.getPathStart(i + 1) : lines.size();
+          for (int k = from; k < to; k++) {
+            job.paths.addPoint(lines.getX(k), lines.getY(k));
+          }
+          job.paths.endPath();
+        }
+        job.mask = createMask(job.paths);
+      }
+    });
+    p.add(new Pass() {
+      public String getName() {
+        return "clip";
+      }
+
+      public void run(PlotJob job) {
+        // the reachable area of the firmware, in shape units
+        EnvelopeClipper clipper = new EnvelopeClipper(
+            (Polargraph.MIN_X - job.tx) / job.scale, (Polargraph.MIN_Y - job.ty) / job.scale,
+            (Polargraph.MAX_X - job.tx) / job.scale, (Polargraph.MAX_Y - job.ty) / job.scale);
+        job.paths = clipper.clip(job.paths);
+      }
+    });
+    p.add(new Pass() {
+      public String getName() {
+        return "dedup";
+      }
+
+      public void run(PlotJob job) {
+        job.paths = OverlapFilter.filter(job.paths, OVERLAP_TOLERANCE / job.scale);
+      }
+    });
+    p.add(new Pass() {
+      public String getName() {
+        return "simplify";
+      }
+
+      public void run(PlotJob job) {
+        job.paths = simplifyPaths(job.paths);
+      }
+    });
+    p.add(new Pass() {
+      public String getName() {
+        return "merge";
+      }
+
+      public void run(PlotJob job) {
+        job.paths = mergePaths(job.paths);
+      }
+    });
+    p.add(new Pass() {
+      public String getName() {
+        return "order";
+      }
+
+      public void run(PlotJob job) {
+        job.reversed = new boolean[job.paths.size];
+        job.paths = sortPaths(job.paths, job.reversed, createGaps(job.mask));
+      }
+    });
+    p.add(new Pass() {
+      public String getName() {
+        return "encode";
+      }
+
+      public void run(PlotJob job) {
+        if (job.reversed == null) {
+          job.reversed = new boolean[job.paths.size];
+        }
+        job.instructions = new InstructionBuffer();
+        convertToInstructions(job.instructions, job.paths, job.reversed,
+            createGaps(job.mask));
+      }
+    });
+    return p;
+  }
+
   /**
    * Process keyboard input
    * 
@@ -741,6 +1104,15 @@ public class Plotter extends PApplet {
       state = STATE_ABORTING;
       break;
     
+    // y/n = resume an interrupted job or start it from the beginning
+    case 'y':
+    case 'n':
+      if (state == STATE_RESUME_QUERY) {
+        state = setupPlotter(currentInstructions, (key == 'y') ? resumeIndex : 0)
+          ? STATE_PLOTTING : STATE_WAITING_INPUT;
+      }
+      break;
+
     // p = begin plotting
     case 'p':
       plotting = true;
@@ -873,6 +1245,12 @@ public class Plotter extends PApplet {
       drawBoundingBox = !drawBoundingBox;
       state = STATE_PLOTTING_SCREEN;
       break;
+
+    // k = toggle host side kinematics for the next job
+    case 'k':
+      hostKinematics = !hostKinematics;
+      println("host kinematics: " + hostKinematics);
+      break;
     }
   }
 
@@ -881,11 +1259,11 @@ public class Plotter extends PApplet {
    * left and bottom right extends of the SVG shape
    * 
    * @param p
-   *            RShape to acquire extents from
+   *            Shape to acquire extents from
    * @param msg
    *            Message to print to console
    */
-  private void print(RShape p, String msg) {
+  private void print(SvgShape p, String msg) {
     RPoint p1 = p.getTopLeft();
     RPoint p2 = p.getBottomRight();
     System.out.println(msg + " (" + p1.x + ", " + p1.y + "), (" + p2.x + ", " + p2.y + ")");
@@ -914,12 +1292,33 @@ public class Plotter extends PApplet {
   /**
    * Loads the first SVG file from the BUFFER_ACC_PATH folder
    * 
-   * @return RShape The SVG file contents, if it exists. Otherwise null.
+   * @return The SVG file contents, if it exists and can be read. Otherwise
+   *         null.
    */
-  private RShape loadNewShape(String filename) {
+  private SvgShape loadNewShape(String filename) {
     System.out.println("loading " + filename);
-    RShape shape = RG.loadShape(BUFFER_ACC_PATH + filename);
-    shape.scale(svgScale, shape.getCenter());
+    SvgShape shape;
+    try {
+      shape = SvgShape.read(new File(BUFFER_ACC_PATH + filename));
+    }
+    catch (IOException e) {
+      System.out.println("cannot load " + filename + ": " + e.getMessage());
+      return null;
+    }
+    if (shape.getUnsupported() != null) {
+      // slower, but geomerative draws more of SVG
+      System.out.println("warning: " + filename + " uses " + shape.getUnsupported()
+          + ", loading it with geomerative");
+      try {
+        shape = SvgShape.fromShape(RG.loadShape(BUFFER_ACC_PATH + filename));
+      }
+      catch (RuntimeException e) {
+        System.out.println("cannot load " + filename + ": " + e);
+        return null;
+      }
+    }
+    RPoint center = shape.getCenter();
+    shape.scale(svgScale, center.x, center.y);
     print(shape, "loaded: ");
     return shape;
   }
@@ -944,19 +1343,4 @@ public class Plotter extends PApplet {
     PApplet.main(new String[] { "com.tinkerlog.kritzler.Plotter" });
   }  
   
-  private class PathComparator implements Comparator<RPath> {
-
-    @Override
-    public int compare(RPath path1, RPath path2) {
-      RPoint p1 = path1.getPoints()[0];
-      RPoint p2 = path2.getPoints()[0];
-      float dx = p1.x - p2.x;
-      float dy = p1.y - p2.y;
-      if (abs(dy) < MAX_COMPARE_DELTA) {
-        return p1.x > p2.x ? 1 : p1.x < p2.x ? -1 : 0;
-      }
-      return (dy > 0) ? 1 : -1;
-    }
-  }
-  
 }
@@ -0,0 +1,152 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * Constants and geometry of the kritzlershield firmware. Keep in sync with
+ * the defines in firmware/kritzlershield/kritzlershield.ino.
+ */
+public final class Polargraph {
+
+  // distance between both motors (axis), 1/10 mm
+  public static final int AXIS_DISTANCE_X = 15000;
+  public static final int AXIS_DISTANCE_Y = 15000;
+
+  // position after reset
+  public static final int START_X = 7500;
+  public static final int START_Y = 7500;
+
+  // reachable area, the firmware clamps every target to it
+  public static final int MIN_X = 4000;
+  public static final int MAX_X = 11000;
+  public static final int MIN_Y = 4000;
+  public static final int MAX_Y = 12000;
+
+  public static final int PULLEY_R = 96;
+  public static final float PI = 3.14159F;  // as defined by the firmware
+  public static final int STEPS_PER_ROT = 800;
+
+  /** String length per motor step, computed in float like on the AVR. */
+  public static final float M2S = (2 * PI * PULLEY_R) / STEPS_PER_ROT;
+
+  /**
+   * Period of the stepper state machine: 16 MHz, prescaler 8, 256 counts
+   * per overflow and every 4th overflow handled.
+   */
+  public static final int TICK_MICROS = 512;
+
+  /** Ticks the state machine waits for the servo, see servoTicks(). */
+  public static final int PEN_DELAY = 1000;
+
+  /** Ticks per motor step: pulse, pulse down and PAUSE_DELAY pause ticks. */
+  public static final int TICKS_PER_STEP = 3;
+
+  private Polargraph() {
+  }
+
+  /**
+   * Clamps an x coordinate the way the firmware does
+   * 
+   * @param x
+   *            X coordinate in plotter units
+   * @return Coordinate within MIN_X..MAX_X
+   */
+  public static int clampX(int x) {
+    return (x < MIN_X) ? MIN_X : (x > MAX_X) ? MAX_X : x;
+  }
+
+  /**
+   * Clamps a y coordinate the way the firmware does
+   * 
+   * @param y
+   *            Y coordinate in plotter units
+   * @return Coordinate within MIN_Y..MAX_Y
+   */
+  public static int clampY(int y) {
+    return (y < MIN_Y) ? MIN_Y : (y > MAX_Y) ? MAX_Y : y;
+  }
+
+  /**
+   * Length of the left string, truncated like the firmware's computeA()
+   * 
+   * @return String length in plotter units
+   */
+  public static int computeA(int x, int y) {
+    long xx = x;
+    long yy = y;
+    return (int) Math.sqrt((float) (xx * xx + yy * yy));
+  }
+
+  /**
+   * Length of the right string, truncated like the firmware's computeB()
+   * 
+   * @return String length in plotter units
+   */
+  public static int computeB(int x, int y) {
+    long distanceX = AXIS_DISTANCE_X - x;
+    long yy = y;
+    return (int) Math.sqrt((float) (distanceX * distanceX + yy * yy));
+  }
+
+  /**
+   * Step position of motor 1 for a clamped target
+   * 
+   * @return Absolute step count
+   */
+  public static int stepsM1(int x, int y) {
+    return (int) (computeA(x, y) / M2S);
+  }
+
+  /**
+   * Step position of motor 2 for a clamped target
+   * 
+   * @return Absolute step count
+   */
+  public static int stepsM2(int x, int y) {
+    return (int) (computeB(x, y) / M2S);
+  }
+
+  /**
+   * Ticks the state machine spends in D_STATE_WAIT_SERVO when the pen goes
+   * up or down. The counter runs from 0 to PEN_DELAY inclusive.
+   * 
+   * @return Number of ticks
+   */
+  public static int servoTicks() {
+    return PEN_DELAY + 1;
+  }
+
+  /**
+   * Ticks the state machine needs to execute a move, from the idle tick that
+   * picks up the command to the next idle tick, without the servo. Its slot
+   * in the command ring is freed one tick before.
+   * 
+   * @param steps
+   *            max(|delta M1|, |delta M2|), the number of Bresenham iterations
+   * @return Number of ticks
+   */
+  public static int moveTicks(int steps) {
+    return TICKS_PER_STEP * Math.max(steps, 1);
+  }
+
+  /**
+   * Time a pen lift costs: waiting for the servo to lift the pen and to
+   * lower it again
+   * 
+   * @return Duration in microseconds
+   */
+  public static long liftMicros() {
+    return 2L * servoTicks() * TICK_MICROS;
+  }
+
+  /**
+   * Distance the pen travels in the given time, assuming one motor step per
+   * M2S like along the strings
+   * 
+   * @param micros
+   *            Duration in microseconds
+   * @return Distance in plotter units
+   */
+  public static float travelDistance(long micros) {
+    return micros / (TICKS_PER_STEP * TICK_MICROS) * M2S;
+  }
+
+}
@@ -0,0 +1,98 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * Ramer-Douglas-Peucker simplification of polylines. Drops the points that
+ * are closer than the tolerance to the segment between the points kept
+ * around them, so runs of nearly collinear points become a single line. A
+ * point on the line but beyond the segment, where the polyline turns back,
+ * is kept. Works in place on primitive arrays with an explicit stack
+ * instead of recursion, so it copes with polylines of millions of points.
+ */
+public final class PolylineSimplifier {
+
+  private PolylineSimplifier() {
+  }
+
+  /**
+   * Simplifies a polyline in place. The first and the last point are always
+   * kept, the kept points are moved to the front of the arrays.
+   *
+   * @param xs
+   *            X coordinates
+   * @param ys
+   *            Y coordinates
+   * @param n
+   *            Number of points
+   * @param tolerance
+   *            Largest distance of a dropped point from the simplified line
+   * @return Number of points kept
+   */
+  public static int simplify(float[] xs, float[] ys, int n, float tolerance) {
+    if (n < 3 || tolerance <= 0) {
+      return n;
+    }
+    float tol2 = tolerance * tolerance;
+    boolean[] keep = new boolean[n];
+    keep[0] = true;
+    keep[n - 1] = true;
+
+    // ranges (first, last) still to be checked
+    int[] stack = new int[64];
+    int top = 0;
+    stack[top++] = 0;
+    stack[top++] = n - 1;
+    while (top > 0) {
+      int last = stack[--top];
+      int first = stack[--top];
+      float ax = xs[first];
+      float ay = ys[first];
+      float dx = xs[last] - ax;
+      float dy = ys[last] - ay;
+      float len2 = dx * dx + dy * dy;
+      int farthest = -1;
+      float max = tol2;
+      for (int i = first + 1; i < last; i++) {
+        float px = xs[i] - ax;
+        float py = ys[i] - ay;
+        // closest point of the segment, the end point for a closed range
+        float t = (len2 == 0) ? 0 : (px * dx + py * dy) / len2;
+        t = Math.min(Math.max(t, 0), 1);
+        float qx = px - t * dx;
+        float qy = py - t * dy;
+        float d = qx * qx + qy * qy;
+        if (d > max) {
+          max = d;
+          farthest = i;
+        }
+      }
+      if (farthest < 0) {
+        continue;
+      }
+      keep[farthest] = true;
+      if (top + 4 > stack.length) {
+        int[] s = new int[stack.length * 2];
+        System.arraycopy(stack, 0, s, 0, top);
+        stack = s;
+      }
+      if (farthest - first > 1) {
+        stack[top++] = first;
+        stack[top++] = farthest;
+      }
+      if (last - farthest > 1) {
+        stack[top++] = farthest;
+        stack[top++] = last;
+      }
+    }
+
+    int m = 0;
+    for (int i = 0; i < n; i++) {
+      if (keep[i]) {
+        xs[m] = xs[i];
+        ys[m] = ys[i];
+        m++;
+      }
+    }
+    return m;
+  }
+
+}
@@ -0,0 +1,247 @@
+package com.tinkerlog.kritzler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Small memory-mapped file that records how far the current job got. Every
+ * acknowledged instruction is a single int write into the mapping, the OS
+ * keeps the page even if the JVM dies. The mapping is forced to disk at most
+ * once per FORCE_INTERVAL.
+ *
+ * The file is mapped while a job runs, from begin() up to close() at its
+ * end, and mapped again by the next begin() or getResumeIndex().
+ *
+ * Layout: magic, version, content hash of the job (long), number of
+ * instructions, number of acknowledged instructions.
+ */
+public class ProgressJournal {
+
+  private static final int MAGIC = 0x4B524A31;  // "KRJ1"
+  private static final int VERSION = 1;
+  private static final int SIZE = 32;
+
+  private static final int POS_MAGIC = 0;
+  private static final int POS_VERSION = 4;
+  private static final int POS_HASH = 8;
+  private static final int POS_COUNT = 16;
+  private static final int POS_ACKED = 20;
+
+  private static final long FORCE_INTERVAL = 1000;
+
+  private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+
+  private final File path;
+  private RandomAccessFile file;
+  private MappedByteBuffer buf;  // null while closed
+  private long lastForce;
+
+  /**
+   * Opens or creates a journal file
+   *
+   * @param f
+   *            Journal file
+   * @throws IOException
+   *             If the file cannot be mapped
+   */
+  public ProgressJournal(File f) throws IOException {
+    path = f;
+    open();
+  }
+
+  private void open() throws IOException {
+    file = new RandomAccessFile(path, "rw");
+    try {
+      buf = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+    }
+    catch (IOException e) {
+      file.close();
+      throw e;
+    }
+    if (buf.getInt(POS_MAGIC) != MAGIC || buf.getInt(POS_VERSION) != VERSION) {
+      buf.putInt(POS_COUNT, 0);
+      buf.putInt(POS_ACKED, 0);
+      buf.putLong(POS_HASH, 0);
+      buf.putInt(POS_VERSION, VERSION);
+      buf.putInt(POS_MAGIC, MAGIC);
+      buf.force();
+    }
+  }
+
+  /**
+   * Maps the file again after close()
+   *
+   * @return False if it cannot be mapped
+   */
+  private boolean reopen() {
+    if (buf != null) {
+      return true;
+    }
+    try {
+      open();
+      return true;
+    }
+    catch (IOException e) {
+      System.out.println("opening journal failed: " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Returns the index to resume a job at
+   *
+   * @param hash
+   *            Content hash of the job, see hash()
+   * @param count
+   *            Number of instructions of the job
+   * @return Index of the first instruction that was not acknowledged, or 0
+   *         if the journal belongs to another job or the job was completed
+   */
+  public int getResumeIndex(long hash, int count) {
+    if (!reopen()) {
+      return 0;
+    }
+    int acked = buf.getInt(POS_ACKED);
+    if (buf.getLong(POS_HASH) != hash || buf.getInt(POS_COUNT) != count
+        || acked <= 0 || acked >= count) {
+      return 0;
+    }
+    return acked;
+  }
+
+  /**
+   * Records the start of a job
+   *
+   * @param hash
+   *            Content hash of the job
+   * @param count
+   *            Number of instructions
+   * @param acked
+   *            Number of instructions already done, when resuming
+   */
+  public void begin(long hash, int count, int acked) {
+    if (!reopen()) {
+      return;
+    }
+    // invalidate first, a crash in between must not leave a mixed record
+    buf.putInt(POS_ACKED, 0);
+    buf.putLong(POS_HASH, hash);
+    buf.putInt(POS_COUNT, count);
+    buf.putInt(POS_ACKED, acked);
+    buf.force();
+    lastForce = System.currentTimeMillis();
+  }
+
+  /**
+   * Records the number of acknowledged instructions, nothing once closed
+   *
+   * @param acked
+   *            Index of the first instruction not yet acknowledged
+   */
+  public void acknowledge(int acked) {
+    if (buf == null) {
+      return;
+    }
+    buf.putInt(POS_ACKED, acked);
+    long now = System.currentTimeMillis();
+    if (now - lastForce > FORCE_INTERVAL) {
+      buf.force();
+      lastForce = now;
+    }
+  }
+
+  /**
+   * Forces pending writes to disk
+   */
+  public void flush() {
+    if (buf != null) {
+      buf.force();
+    }
+  }
+
+  /**
+   * Forces pending writes to disk and releases the journal file, at the end
+   * of a job or on shutdown. The mapping is dropped with the last reference
+   * to it, Java has no way to unmap it earlier.
+   */
+  public void close() {
+    if (buf == null) {
+      return;
+    }
+    buf.force();
+    buf = null;
+    try {
+      file.close();
+    }
+    catch (IOException e) {
+      System.out.println("closing journal failed: " + e.getMessage());
+    }
+    file = null;
+  }
+
+  /**
+   * Computes the hash of a job as it is plotted: its content hash, see
+   * contentHash(), and the parameters that map it onto the plotter. The
+   * content hash of a .kri file is taken from its header, so the records
+   * are not read.
+   *
+   * @param instructions
+   *            Instructions of the job
+   * @param tx
+   *            X translation
+   * @param ty
+   *            Y translation
+   * @param scale
+   *            Scale factor
+   * @return Hash value
+   */
+  public static long hash(InstructionSource instructions, float tx, float ty, float scale) {
+    long content = (instructions instanceof KriFile) ? ((KriFile) instructions).getHash()
+        : contentHash(instructions);
+    long h = mix(OFFSET_BASIS, (int) content);
+    h = mix(h, (int) (content >>> 32));
+    h = mix(h, Float.floatToIntBits(tx));
+    h = mix(h, Float.floatToIntBits(ty));
+    h = mix(h, Float.floatToIntBits(scale));
+    return h;
+  }
+
+  /**
+   * Computes the content hash (64 bit FNV-1a) of the instructions, as stored
+   * in the header of .kri files. Reads every instruction.
+   *
+   * @param instructions
+   *            Instructions of the job
+   * @return Hash value
+   */
+  public static long contentHash(InstructionSource instructions) {
+    long h = OFFSET_BASIS;
+    for (int i = 0; i < instructions.size(); i++) {
+      h = mix(h, instructions.getType(i));
+      h = mix(h, Float.floatToIntBits(instructions.getX(i)));
+      h = mix(h, Float.floatToIntBits(instructions.getY(i)));
+    }
+    return h;
+  }
+
+  /**
+   * Adds the four bytes of a value to an FNV-1a hash
+   *
+   * @param h
+   *            Hash so far
+   * @param value
+   *            Value to add
+   * @return The new hash
+   */
+  static long mix(long h, int value) {
+    for (int i = 0; i < 4; i++) {
+      h ^= (value >>> (i * 8)) & 0xFF;
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+}
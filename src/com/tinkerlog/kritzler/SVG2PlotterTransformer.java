@@ -11,7 +11,13 @@ import processing.core.PShape;
 
 public class SVG2PlotterTransformer {
   
-  private static final float MAX_DISTANCE = 300.0F;
+  // largest deviation of a drawn line from the straight one, plotter units
+  private static final float SEGMENT_TOLERANCE = 1.0F;
+  
+  // placement on the plotter, decides how much lines bow
+  private final float offsetX;
+  private final float offsetY;
+  private final float scale;
   
   private float minX = Float.MAX_VALUE;
   private float maxX = Float.MIN_VALUE;
@@ -26,24 +32,53 @@ public class SVG2PlotterTransformer {
       3, -6,  3,  0,
       -3,  3,  0,  0,
       1,  0,  0,  0);
-  private List<float[]> lines;
-  private List<Instruction> instructions;
+  private InstructionBuffer instructions;
   
 
-  public SVG2PlotterTransformer() {
+  /**
+   * Creates a transformer for a shape plotted at the given place. Pattern
+   * lines are split for the bowing of the plotter there, so this has to be
+   * the translation and scale the instructions are sent with.
+   * 
+   * @param tx
+   *            X translation, as passed to Kritzler.translate()
+   * @param ty
+   *            Y translation
+   * @param scale
+   *            Scale factor, as passed to Kritzler.setScale()
+   */
+  public SVG2PlotterTransformer(float tx, float ty, float scale) {
+    offsetX = tx;
+    offsetY = ty;
+    this.scale = scale;
     draw = new PMatrix3D();
     splineForward(bezierDetail, draw);
     draw.apply(bezierBasisMatrix);
-    lines = new ArrayList<float[]>(100);
-    instructions = new ArrayList<Instruction>();
+    instructions = new InstructionBuffer();
     prev = new float[2];
   }
   
+  /**
+   * Returns the segments drawn by the instructions, shifted by 20 units
+   * 
+   * @return Lines as x1, y1, x2, y2
+   */
   public List<float[]> getLines() {
+    List<float[]> lines = new ArrayList<float[]>(instructions.size());
+    for (int i = 1; i < instructions.size(); i++) {
+      if (instructions.isLine(i)) {
+        float[] line = new float[4];
+        line[0] = instructions.getX(i - 1) + 20;
+        line[1] = instructions.getY(i - 1) + 20;
+        line[2] = instructions.getX(i) + 20;
+        line[3] = instructions.getY(i) + 20;
+        lines.add(line);
+      }
+    }
     return lines;
   }
   
-  public List<Instruction> getInstructions() {
+  public InstructionBuffer getInstructions() {
     return instructions;
   }
   
@@ -89,11 +124,10 @@ public class SVG2PlotterTransformer {
         checkPoint(p1[0], p1[1]);
         if (first) {
           first = false;
-          instructions.add(new Instruction(Instruction.MOVE_ABS, p1[0], p1[1]));
+          instructions.add(Instruction.MOVE_ABS, p1[0], p1[1]);
         }
         else {
-          addLine(prev[0], prev[1], p1[0], p1[1]);
-          instructions.add(new Instruction(Instruction.LINE_ABS, p1[0], p1[1]));
+          instructions.add(Instruction.LINE_ABS, p1[0], p1[1]);
         }
         prev = p1;
         i++;
@@ -129,29 +163,15 @@ public class SVG2PlotterTransformer {
     float yplot2 = draw.m20*y1 + draw.m21*y2 + draw.m22*y3 + draw.m23*y4;
     float yplot3 = draw.m30*y1 + draw.m31*y2 + draw.m32*y3 + draw.m33*y4;
 
-    float oldx = x1;
-    float oldy = y1;
     for (int j = 0; j < bezierDetail; j++) {
       x1 += xplot1; xplot1 += xplot2; xplot2 += xplot3;
       y1 += yplot1; yplot1 += yplot2; yplot2 += yplot3;
-      addLine(oldx, oldy, x1, y1);
-      instructions.add(new Instruction(Instruction.LINE_ABS, x1, y1));
-      oldx = x1;
-      oldy = y1;
+      instructions.add(Instruction.LINE_ABS, x1, y1);
     }
     prev[0] = x4;
     prev[1] = y4;    
   }  
 
-  private void addLine(float x1, float y1, float x2, float y2) {
-    float[] line = new float[4];
-    line[0] = x1+20; 
-    line[1] = y1+20;
-    line[2] = x2+20; 
-    line[3] = y2+20;
-    lines.add(line);    
-  }
-  
   private void checkPoint(float x, float y) {    
     if (x < minX) {
       minX = x;      
@@ -168,7 +188,7 @@ public class SVG2PlotterTransformer {
   }
   
   
-  public List<float[]> getPatternLines(List<float[]> lines, List<Instruction> instructions) {
+  public List<float[]> getPatternLines(List<float[]> lines, InstructionBuffer instructions) {
     
     List<float[]> cutLines = new ArrayList<float[]>();
     for (int i = 0; i < 300; i++) {
@@ -188,8 +208,8 @@ public class SVG2PlotterTransformer {
     for (int i = 0; i < shortPatternLines.size(); i++) {
       float[] l = shortPatternLines.get(i);
       // TODO optimize
-      instructions.add(new Instruction(Instruction.MOVE_ABS, l[0], l[1]));
-      instructions.add(new Instruction(Instruction.LINE_ABS, l[2], l[3]));
+      instructions.add(Instruction.MOVE_ABS, l[0], l[1]);
+      instructions.add(Instruction.LINE_ABS, l[2], l[3]);
     }
     System.out.println("shortPatternLines: " + shortPatternLines.size());
     
@@ -246,48 +266,28 @@ public class SVG2PlotterTransformer {
 
   private List<float[]> makeShortLines(List<float[]> lines) {
     List<float[]> newLines = new ArrayList<float[]>();
+    List<float[]> points = new ArrayList<float[]>();
     for (int i = 0; i < lines.size(); i++) {
-      float[] line = lines.get(i);      
-      float x1 = line[2];
-      float y1 = line[3];
-      float x2 = line[0];
-      float y2 = line[1];
-//      float y2y1 = line[1] - line[3];
-//      float x2x1 = line[0] - line[2];
-      float y2y1 = y1 - y2;
-      float x2x1 = x1 - x2;
-      float distance = (float)Math.sqrt(y2y1*y2y1 + x2x1*x2x1);
-      if (distance > MAX_DISTANCE) {
-        // System.out.println("distance: " + distance);
-        float m = y2y1 / x2x1;
-        float n = y1 - m * x1;
-        float dc = distance / MAX_DISTANCE;
-        //System.out.println("  dc: " + dc);
-        float dx = x2x1 / dc;
-        //System.out.println("  dx: " + dx);
-//        float x2 = line[2];
-//        float x1 = line[0];
-//        float y2 = line[3];
-//        float y1 = 0.0F;
-        while (x1 > x2) {
-          float[] newLine = new float[4];
-          newLine[0] = x2;
-          newLine[1] = y2;
-          //System.out.println("  x2, x1 " + x2 + ", " + x1);
-          x2 = x2 + dx;
-          if (x2 > x1) {
-            x2 = x1;
-          }
-          newLine[2] = x2;
-          newLine[3] = m * x2 + n;
-          y2 = newLine[3];
-          newLines.add(newLine);
-        }        
-      }
-      else {
-        newLines.add(line);
+      float[] line = lines.get(i);
+      // split where the plotter would bow the line more than the tolerance
+      points.clear();
+      KinematicSegmenter.split(
+          line[0] * scale + offsetX, line[1] * scale + offsetY,
+          line[2] * scale + offsetX, line[3] * scale + offsetY,
+          SEGMENT_TOLERANCE, points);
+      float x = line[0];
+      float y = line[1];
+      for (int k = 0; k < points.size(); k++) {
+        float[] p = points.get(k);
+        float[] newLine = new float[4];
+        newLine[0] = x;
+        newLine[1] = y;
+        newLine[2] = (k == points.size() - 1) ? line[2] : (p[0] - offsetX) / scale;
+        newLine[3] = (k == points.size() - 1) ? line[3] : (p[1] - offsetY) / scale;
+        x = newLine[2];
+        y = newLine[3];
+        newLines.add(newLine);
       }
-      
     }
     return newLines;
   }
@@ -0,0 +1,37 @@
+package com.tinkerlog.kritzler;
+
+import java.io.IOException;
+
+import processing.serial.Serial;
+
+/**
+ * Transport over a Processing serial port
+ */
+public class SerialTransport implements Transport {
+
+  private final Serial port;
+
+  public SerialTransport(Serial port) {
+    this.port = port;
+  }
+
+  public int available() {
+    return port.available();
+  }
+
+  public int read() {
+    return port.read();
+  }
+
+  public void write(byte[] buf, int off, int len) throws IOException {
+    if (port.output == null) {
+      throw new IOException("port not open");
+    }
+    port.output.write(buf, off, len);
+  }
+
+  public long millis() {
+    return System.currentTimeMillis();
+  }
+
+}
@@ -0,0 +1,280 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * Area covered by the closed paths of a shape, under the even-odd rule so
+ * that holes stay outside. Used to decide whether the pen may be dragged
+ * across a gap without leaving a mark outside the drawing. The polygon edges
+ * are kept in a grid, in the cells they pass through, which is built on the
+ * first query, so a query only looks at the edges near it. Queries use
+ * scratch space of the mask, other threads query a mask of their own, see
+ * share().
+ */
+public class ShapeMask {
+
+  // crossings closer to an end of a line than this part of its length are
+  // ignored, so lines may start and end on the outline
+  private static final double EPSILON = 1e-3;
+
+  private float[] xs = new float[256];
+  private float[] ys = new float[256];
+  private int size;
+
+  // polygon k has the points start[k] up to start[k + 1] exclusive
+  private int[] start = new int[17];
+  private int count;
+
+  // edge i runs from point i to point next[i], the edges of grid cell c are
+  // cellEdges[cellStart[c]] up to cellEdges[cellStart[c + 1]] exclusive
+  private GridWalk walk;  // null until the grid is built
+  private int columns;
+  private int rows;
+  private int[] next;
+  private int[] cellStart;
+  private int[] cellEdges;
+  private int[] seen;  // query that last saw an edge
+  private int query;
+
+  /**
+   * Adds a closed polygon, the last point is connected to the first one
+   *
+   * @param px
+   *            X coordinates
+   * @param py
+   *            Y coordinates
+   * @param from
+   *            Index of the first point in px and py
+   * @param n
+   *            Number of points
+   */
+  public void add(float[] px, float[] py, int from, int n) {
+    if (n < 3) {
+      return;
+    }
+    if (size + n > xs.length) {
+      int length = Math.max(size + n, 2 * xs.length);
+      float[] x = new float[length];
+      float[] y = new float[length];
+      System.arraycopy(xs, 0, x, 0, size);
+      System.arraycopy(ys, 0, y, 0, size);
+      xs = x;
+      ys = y;
+    }
+    if (count + 2 > start.length) {
+      int[] s = new int[2 * start.length];
+      System.arraycopy(start, 0, s, 0, count + 1);
+      start = s;
+    }
+    System.arraycopy(px, from, xs, size, n);
+    System.arraycopy(py, from, ys, size, n);
+    size += n;
+    count++;
+    start[count] = size;
+    walk = null;
+  }
+
+  /**
+   * Builds the grid of edges, with about one cell per edge
+   */
+  private void index() {
+    next = new int[size];
+    float minX = Float.POSITIVE_INFINITY;
+    float minY = Float.POSITIVE_INFINITY;
+    float maxX = Float.NEGATIVE_INFINITY;
+    float maxY = Float.NEGATIVE_INFINITY;
+    for (int k = 0; k < count; k++) {
+      for (int i = start[k]; i < start[k + 1]; i++) {
+        next[i] = (i + 1 < start[k + 1]) ? i + 1 : start[k];
+        minX = Math.min(minX, xs[i]);
+        minY = Math.min(minY, ys[i]);
+        maxX = Math.max(maxX, xs[i]);
+        maxY = Math.max(maxY, ys[i]);
+      }
+    }
+    float width = maxX - minX;
+    float height = maxY - minY;
+    float cell = (float) Math.sqrt(width * height / size);
+    cell = Math.max(cell, Math.max(Math.max(width, height) / 4096, 1e-3F));
+    columns = (int) (width / cell) + 1;
+    rows = (int) (height / cell) + 1;
+    walk = new GridWalk(minX, minY, cell);
+
+    // count the edges of every cell, then fill them in
+    cellStart = new int[columns * rows + 1];
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < size; i++) {
+        walk.walk(xs[i], ys[i], xs[next[i]], ys[next[i]]);
+        for (int k = 0; k < walk.size(); k++) {
+          int c = cell(walk.getX(k), walk.getY(k));
+          if (c < 0) {
+            continue;
+          }
+          if (pass == 0) {
+            cellStart[c + 1]++;
+          }
+          else {
+            cellEdges[cellStart[c]++] = i;
+          }
+        }
+      }
+      if (pass == 0) {
+        for (int c = 0; c < columns * rows; c++) {
+          cellStart[c + 1] += cellStart[c];
+        }
+        cellEdges = new int[cellStart[columns * rows]];
+      }
+    }
+    // filling moved every start to the next cell
+    System.arraycopy(cellStart, 0, cellStart, 1, columns * rows);
+    cellStart[0] = 0;
+    seen = new int[size];
+    query = 0;
+  }
+
+  /**
+   * Returns a mask of the same area for queries from another thread. It
+   * shares the grid with this one, which is built first if needed, and has
+   * scratch space of its own. Neither may be added to afterwards.
+   *
+   * @return The mask
+   */
+  public synchronized ShapeMask share() {
+    if (walk == null && count > 0) {
+      index();
+    }
+    ShapeMask m = new ShapeMask();
+    m.xs = xs;
+    m.ys = ys;
+    m.size = size;
+    m.start = start;
+    m.count = count;
+    if (walk != null) {
+      m.walk = new GridWalk(walk);
+      m.columns = columns;
+      m.rows = rows;
+      m.next = next;
+      m.cellStart = cellStart;
+      m.cellEdges = cellEdges;
+      m.seen = new int[size];
+    }
+    return m;
+  }
+
+  /**
+   * Returns the index of a grid cell, -1 outside the grid
+   */
+  private int cell(int cx, int cy) {
+    if (cx < 0 || cy < 0 || cx >= columns || cy >= rows) {
+      return -1;
+    }
+    return cy * columns + cx;
+  }
+
+  /**
+   * Tests whether a point is inside the area
+   *
+   * @param x
+   *            X coordinate
+   * @param y
+   *            Y coordinate
+   * @return True if an odd number of polygons contain the point
+   */
+  public boolean contains(float x, float y) {
+    if (count == 0) {
+      return false;
+    }
+    if (walk == null) {
+      index();
+    }
+    int cy = walk.cellY(y);
+    if (cy < 0 || cy >= rows) {
+      return false;
+    }
+    // count the edges crossed by a ray to the right, along the row
+    query++;
+    boolean inside = false;
+    for (int cx = Math.max(walk.cellX(x), 0); cx < columns; cx++) {
+      int c = cell(cx, cy);
+      for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+        int i = cellEdges[k];
+        if (seen[i] == query) {
+          continue;
+        }
+        seen[i] = query;
+        // from the end of the edge back to its start, as points on the
+        // outline have always been rounded
+        int j = next[i];
+        if ((ys[j] > y) != (ys[i] > y)
+            && x < (xs[i] - xs[j]) * (y - ys[j]) / (ys[i] - ys[j]) + xs[j]) {
+          inside = !inside;
+        }
+      }
+    }
+    return inside;
+  }
+
+  /**
+   * Tests whether a line stays inside the area: it may not cross any edge
+   * between its end points, which may lie on the outline, and then its
+   * middle has to be inside
+   *
+   * @return True if the line is inside
+   */
+  public boolean contains(float x1, float y1, float x2, float y2) {
+    if (count == 0) {
+      return false;
+    }
+    if (walk == null) {
+      index();
+    }
+    query++;
+    walk.walk(x1, y1, x2, y2);
+    for (int w = 0; w < walk.size(); w++) {
+      int c = cell(walk.getX(w), walk.getY(w));
+      if (c < 0) {
+        continue;
+      }
+      for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+        int i = cellEdges[k];
+        if (seen[i] == query) {
+          continue;
+        }
+        seen[i] = query;
+        if (crosses(x1, y1, x2, y2, i)) {
+          return false;
+        }
+      }
+    }
+    return contains((x1 + x2) / 2, (y1 + y2) / 2);
+  }
+
+  /**
+   * Tests whether the line crosses edge i away from its end points
+   */
+  private boolean crosses(float x1, float y1, float x2, float y2, int i) {
+    int j = next[i];
+    double dx = x2 - x1;
+    double dy = y2 - y1;
+    double fx = xs[j] - xs[i];
+    double fy = ys[j] - ys[i];
+    double d = dx * fy - dy * fx;
+    if (d == 0) {
+      // parallel, running along an edge does not leave the area
+      return false;
+    }
+    double ax = xs[i] - x1;
+    double ay = ys[i] - y1;
+    double t = (ax * fy - ay * fx) / d;
+    double u = (ax * dy - ay * dx) / d;
+    return t > EPSILON && t < 1 - EPSILON && u >= 0 && u <= 1;
+  }
+
+  /**
+   * Returns the number of polygons
+   *
+   * @return Number of polygons added
+   */
+  public int size() {
+    return count;
+  }
+
+}
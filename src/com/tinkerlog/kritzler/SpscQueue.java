@@ -0,0 +1,76 @@
+package com.tinkerlog.kritzler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free queue for exactly one producer thread and exactly one
+ * consumer thread. Used to hand messages from the serial I/O thread to the
+ * Processing draw() loop without either side ever blocking.
+ */
+public class SpscQueue<T> {
+
+  private final AtomicReferenceArray<T> slots;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong();  // next slot to poll
+  private final AtomicLong tail = new AtomicLong();  // next slot to offer
+
+  /**
+   * Creates a new queue
+   *
+   * @param capacity
+   *            Minimum capacity, rounded up to the next power of two
+   */
+  public SpscQueue(int capacity) {
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    slots = new AtomicReferenceArray<T>(size);
+    mask = size - 1;
+  }
+
+  /**
+   * Adds an element. Must only be called by the producer thread.
+   *
+   * @param e
+   *            Element to add, not null
+   * @return False if the queue is full and the element was dropped
+   */
+  public boolean offer(T e) {
+    long t = tail.get();
+    if (t - head.get() > mask) {
+      return false;
+    }
+    slots.lazySet((int) t & mask, e);
+    tail.lazySet(t + 1);
+    return true;
+  }
+
+  /**
+   * Removes the oldest element. Must only be called by the consumer thread.
+   *
+   * @return The element or null if the queue is empty
+   */
+  public T poll() {
+    long h = head.get();
+    if (h == tail.get()) {
+      return null;
+    }
+    int i = (int) h & mask;
+    T e = slots.get(i);
+    slots.lazySet(i, null);
+    head.lazySet(h + 1);
+    return e;
+  }
+
+  /**
+   * Returns true if there is nothing to poll
+   *
+   * @return True if empty
+   */
+  public boolean isEmpty() {
+    return head.get() == tail.get();
+  }
+
+}
@@ -0,0 +1,132 @@
+package com.tinkerlog.kritzler;
+
+/**
+ * A job compiled to motor space: the step positions of both motors for every
+ * instruction, computed with the firmware's clamping and inverse kinematics
+ * (see Polargraph). Firmware that announces STEPS_BANNER accepts these
+ * targets directly and skips computeA/B and the float divisions.
+ *
+ * Targets are computed on demand, in windows of WINDOW instructions ahead of
+ * the one asked for, and only the last WINDOW are kept, so a job of any
+ * size takes the same memory. Relative instructions continue from the
+ * previous target, going back further than WINDOW starts over from the
+ * first instruction. Not thread safe, used by the I/O thread only.
+ */
+public class StepTargets {
+
+  /** Line printed by firmware that accepts step targets. */
+  public static final String STEPS_BANNER = "#proto steps";
+
+  /** Number of targets kept, far more than can be in flight. */
+  private static final int WINDOW = 4096;
+
+  private final InstructionSource instructions;
+  private final float tx;
+  private final float ty;
+  private final float scale;
+
+  // target of instruction k is in slot k % WINDOW, for k from computed -
+  // WINDOW up to computed exclusive
+  private final int[] m1 = new int[WINDOW];
+  private final int[] m2 = new int[WINDOW];
+  private int computed;
+  private int x = Polargraph.START_X;  // position after the last computed one
+  private int y = Polargraph.START_Y;
+
+  /**
+   * Compiles a job. Instructions are mapped onto the plotter like the
+   * Kritzler does, relative ones continue from the previous target. Nothing
+   * is computed before the first target is asked for.
+   *
+   * @param instructions
+   *            Instructions of the job
+   * @param tx
+   *            X translation
+   * @param ty
+   *            Y translation
+   * @param scale
+   *            Scale factor
+   */
+  public StepTargets(InstructionSource instructions, float tx, float ty, float scale) {
+    this.instructions = instructions;
+    this.tx = tx;
+    this.ty = ty;
+    this.scale = scale;
+  }
+
+  /**
+   * Returns the step position of motor 1 at the end of an instruction
+   *
+   * @param k
+   *            Index of the instruction
+   * @return Steps of motor 1
+   */
+  public int getM1(int k) {
+    return m1[slot(k)];
+  }
+
+  /**
+   * Returns the step position of motor 2 at the end of an instruction
+   *
+   * @param k
+   *            Index of the instruction
+   * @return Steps of motor 2
+   */
+  public int getM2(int k) {
+    return m2[slot(k)];
+  }
+
+  /**
+   * Returns true if the pen is down while moving to the target
+   *
+   * @param k
+   *            Index of the instruction
+   * @return True for a line
+   */
+  public boolean isDown(int k) {
+    return instructions.isLine(k);
+  }
+
+  /**
+   * Returns the number of targets
+   *
+   * @return Number of instructions compiled
+   */
+  public int size() {
+    return instructions.size();
+  }
+
+  /**
+   * Computes the window up to and beyond instruction k if needed
+   *
+   * @return Slot of instruction k
+   */
+  private int slot(int k) {
+    if (k < computed - WINDOW) {
+      computed = 0;
+      x = Polargraph.START_X;
+      y = Polargraph.START_Y;
+    }
+    if (k >= computed) {
+      int end = Math.min(instructions.size(), Math.max(k + 1, computed + WINDOW / 2));
+      for (; computed < end; computed++) {
+        int nx = (int) (instructions.getX(computed) * scale);
+        int ny = (int) (instructions.getY(computed) * scale);
+        if (instructions.isRelative(computed)) {
+          nx += x;
+          ny += y;
+        }
+        else {
+          nx += tx;
+          ny += ty;
+        }
+        x = Polargraph.clampX(nx);
+        y = Polargraph.clampY(ny);
+        m1[computed % WINDOW] = Polargraph.stepsM1(x, y);
+        m2[computed % WINDOW] = Polargraph.stepsM2(x, y);
+      }
+    }
+    return k % WINDOW;
+  }
+
+}
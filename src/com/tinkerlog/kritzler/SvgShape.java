@@ -0,0 +1,933 @@
+package com.tinkerlog.kritzler;
+
+import geomerative.RCommand;
+import geomerative.RPoint;
+import geomerative.RShape;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The paths of an SVG file, read with StAX instead of RG.loadShape(). The
+ * path data is tokenized in place and the commands are kept in primitive
+ * arrays, there is no RShape/RPath/RCommand tree, and flatten() writes the
+ * polylines straight into an InstructionBuffer.
+ * <p>
+ * Supports &lt;g&gt; and &lt;path&gt; elements with transforms and the path
+ * commands M, L, H, V, C, S and Z, absolute and relative. Elements that do
+ * not draw are ignored, everything else geomerative would draw but this
+ * reader cannot is reported by getUnsupported(), see fromShape() for the
+ * fallback. The result is the same as loading the file with geomerative
+ * and calling getPoints() on every path, with its default uniform length
+ * segmentation, down to the rounding: points are transformed, bounds are
+ * taken and curves are flattened with the same float arithmetic. That
+ * includes its quirks, noted where they are replicated.
+ */
+public class SvgShape {
+
+  private static final byte MOVE = 0;
+  private static final byte LINE = 1;
+  private static final byte CURVE = 2;  // two control points and the end
+
+  // geomerative RCommand.segmentLength
+  private static final float SEGMENT_LENGTH = 4.0F;
+
+  private static final float DEG_TO_RAD = (float) Math.PI / 180.0F;
+
+  // elements geomerative RSVG draws besides g and path
+  private static final String[] OTHER_SHAPES = { "rect", "line", "circle", "ellipse",
+      "polygon", "polyline" };
+
+  // commands, MOVE starts a path
+  private byte[] ops = new byte[1024];
+  private int commands;
+
+  // points of the commands in order, one for MOVE and LINE, three for CURVE
+  private float[] xs = new float[4096];
+  private float[] ys = new float[4096];
+  private int points;
+
+  // flattened paths, null after a change
+  private InstructionBuffer polylines;
+
+  // the first thing that was skipped while reading, null if none
+  private String unsupported;
+
+  // state while reading a path element
+  private int pathCommands = -1;  // commands of the current path, -1 if none
+  private int pathPoint;  // index of its MOVE point
+  private char[] data = new char[256];
+  private int pos;
+  private int length;
+
+  /**
+   * Reads the paths of an SVG file
+   *
+   * @param f
+   *            SVG file
+   * @return The paths
+   * @throws IOException
+   *             If the file cannot be read or parsed
+   */
+  public static SvgShape read(File f) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(f), 1 << 16);
+    try {
+      return read(in);
+    }
+    catch (IllegalArgumentException e) {
+      throw new IOException(f + ": " + e.getMessage());
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads the paths of an SVG document
+   *
+   * @param in
+   *            SVG document
+   * @return The paths
+   * @throws IOException
+   *             If the document cannot be read or parsed
+   */
+  public static SvgShape read(InputStream in) throws IOException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    // no DTD, potrace declares one on the web
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    SvgShape shape = new SvgShape();
+    try {
+      XMLStreamReader r = factory.createXMLStreamReader(in);
+      try {
+        shape.read(r);
+      }
+      finally {
+        r.close();
+      }
+    }
+    catch (XMLStreamException e) {
+      throw new IOException(e.getMessage());
+    }
+    return shape;
+  }
+
+  private void read(XMLStreamReader r) throws XMLStreamException {
+    // for every open element: its transform and where its points start,
+    // transforms of elements other than g and path are ignored, as well as
+    // everything inside them
+    float[][] transforms = new float[16][];
+    int[] firstPoints = new int[16];
+    int depth = 0;
+    int ignored = 0;
+    while (r.hasNext()) {
+      int event = r.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        if (depth == transforms.length) {
+          float[][] t = new float[2 * depth][];
+          int[] p = new int[2 * depth];
+          System.arraycopy(transforms, 0, t, 0, depth);
+          System.arraycopy(firstPoints, 0, p, 0, depth);
+          transforms = t;
+          firstPoints = p;
+        }
+        String name = r.getLocalName().toLowerCase();
+        boolean known = depth == 0 || name.equals("g") || name.equals("path");
+        if (ignored > 0 || !known) {
+          if (ignored == 0 && isOtherShape(name)) {
+            skip("<" + name + ">");
+          }
+          ignored++;
+        }
+        else if (depth > 0) {
+          String transform = r.getAttributeValue(null, "transform");
+          try {
+            transforms[depth] = (transform == null) ? null : parseTransform(transform);
+            if (name.equals("path")) {
+              String d = r.getAttributeValue(null, "d");
+              if (d != null) {
+                parsePath(d);
+              }
+            }
+          }
+          catch (IllegalArgumentException e) {
+            skip(e.getMessage());
+            transforms[depth] = null;
+            endPath();
+          }
+        }
+        firstPoints[depth] = points;
+        depth++;
+      }
+      else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+        if (ignored > 0) {
+          ignored--;
+        }
+        else if (depth > 0 && transforms[depth] != null) {
+          // like geomerative, inner transforms are applied first, one after
+          // the other
+          transform(transforms[depth], firstPoints[depth], points);
+        }
+      }
+    }
+  }
+
+  private static boolean isOtherShape(String name) {
+    for (int i = 0; i < OTHER_SHAPES.length; i++) {
+      if (OTHER_SHAPES[i].equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void skip(String what) {
+    if (unsupported == null) {
+      unsupported = what;
+    }
+  }
+
+  /**
+   * Tells what was skipped while reading the file: an element other than
+   * &lt;g&gt; and &lt;path&gt; that draws, a path command other than M, L, H,
+   * V, C, S and Z, or path data or a transform that cannot be parsed. The
+   * shape then lacks parts geomerative would draw.
+   *
+   * @return The first thing skipped, null if the file was read completely
+   */
+  public String getUnsupported() {
+    return unsupported;
+  }
+
+  /**
+   * Converts a shape loaded with geomerative, for files read() does not
+   * support completely. The commands are taken over as they are, so the
+   * result behaves like the RShape.
+   *
+   * @param shape
+   *            Shape, e.g. from RG.loadShape()
+   * @return The paths of the shape and its children
+   */
+  public static SvgShape fromShape(RShape shape) {
+    SvgShape s = new SvgShape();
+    s.add(shape);
+    return s;
+  }
+
+  private void add(RShape shape) {
+    for (int i = 0; i < shape.countChildren(); i++) {
+      add(shape.children[i]);
+    }
+    for (int i = 0; i < shape.countPaths(); i++) {
+      RCommand[] c = shape.paths[i].commands;
+      if (c == null || c.length == 0) {
+        continue;
+      }
+      pathCommands = -1;
+      moveTo(c[0].startPoint.x, c[0].startPoint.y);
+      for (int k = 0; k < c.length; k++) {
+        RPoint p0 = c[k].startPoint;
+        RPoint p = c[k].endPoint;
+        RPoint[] cp = c[k].controlPoints;
+        switch (c[k].getCommandType()) {
+        case RCommand.CUBICBEZIERTO:
+          curveTo(cp[0].x, cp[0].y, cp[1].x, cp[1].y, p.x, p.y);
+          break;
+        case RCommand.QUADBEZIERTO:
+          // the same curve as a cubic one
+          curveTo(p0.x + 2 * (cp[0].x - p0.x) / 3, p0.y + 2 * (cp[0].y - p0.y) / 3,
+              p.x + 2 * (cp[0].x - p.x) / 3, p.y + 2 * (cp[0].y - p.y) / 3, p.x, p.y);
+          break;
+        default:
+          lineTo(p.x, p.y);
+        }
+      }
+      endPath();
+    }
+  }
+
+  /**
+   * Parses the path data of a path element, see geomerative RSVG.getShape()
+   */
+  private void parsePath(String d) {
+    length = d.length();
+    if (data.length < length) {
+      data = new char[Math.max(length, 2 * data.length)];
+    }
+    d.getChars(0, length, data, 0);
+    pos = 0;
+    pathCommands = -1;
+
+    float cx = 0;  // current point
+    float cy = 0;
+    float qx = 0;  // first control point of a smooth curve
+    float qy = 0;
+    char command = 'a';
+    while (true) {
+      char c = nextToken();
+      if (c == 0) {
+        break;
+      }
+      if (c != '#') {
+        command = c;
+        pos++;
+      }
+      else if (command == 'm') {
+        command = 'l';
+      }
+      else if (command == 'M') {
+        command = 'L';
+      }
+      boolean rel = Character.isLowerCase(command);
+      float rx = rel ? cx : 0;
+      float ry = rel ? cy : 0;
+      switch (command) {
+      case 'M':
+      case 'm':
+        cx = number() + rx;
+        cy = number() + ry;
+        moveTo(cx, cy);
+        qx = cx;
+        qy = cy;
+        break;
+      case 'L':
+      case 'l':
+        cx = number() + rx;
+        cy = number() + ry;
+        lineTo(cx, cy);
+        qx = cx;
+        qy = cy;
+        break;
+      case 'H':
+      case 'h':
+        cx = number() + rx;
+        lineTo(cx, cy);
+        qx = cx;
+        qy = cy;
+        break;
+      case 'V':
+      case 'v':
+        cy = number() + ry;
+        lineTo(cx, cy);
+        qx = cx;
+        qy = cy;
+        break;
+      case 'C':
+      case 'c': {
+        float x1 = number() + rx;
+        float y1 = number() + ry;
+        float x2 = number() + rx;
+        float y2 = number() + ry;
+        cx = number() + rx;
+        cy = number() + ry;
+        curveTo(x1, y1, x2, y2, cx, cy);
+        qx = 2 * cx - x2;
+        qy = 2 * cy - y2;
+        break;
+      }
+      case 'S':
+      case 's': {
+        float x2 = number() + rx;
+        float y2 = number() + ry;
+        cx = number() + rx;
+        cy = number() + ry;
+        curveTo(qx, qy, x2, y2, cx, cy);
+        qx = 2 * cx - x2;
+        qy = 2 * cy - y2;
+        break;
+      }
+      case 'Z':
+      case 'z':
+        // geomerative leaves the current point at the last point, and a
+        // number after Z closes again
+        close();
+        if (c == '#') {
+          number();
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("unsupported path command " + command);
+      }
+    }
+    endPath();
+  }
+
+  /**
+   * Skips separators
+   *
+   * @return The command letter at pos, '#' for a number, 0 at the end
+   */
+  private char nextToken() {
+    while (pos < length) {
+      char c = data[pos];
+      if (c == ' ' || c == ',' || c == '\n' || c == '\r' || c == '\t') {
+        pos++;
+        continue;
+      }
+      if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.') {
+        return '#';
+      }
+      return c;
+    }
+    return 0;
+  }
+
+  /**
+   * Parses the next number of the path data in place. Numbers with up to
+   * seven digits and no exponent are computed exactly in float, which rounds
+   * like Float.parseFloat(), others are handed to it.
+   */
+  private float number() {
+    if (nextToken() != '#') {
+      throw new IllegalArgumentException("number expected at " + pos);
+    }
+    int start = pos;
+    boolean negative = data[pos] == '-';
+    if (data[pos] == '-' || data[pos] == '+') {
+      pos++;
+    }
+    int mantissa = 0;
+    int scale = 0;
+    boolean exact = true;
+    boolean fraction = false;
+    boolean digits = false;
+    for (; pos < length; pos++) {
+      char c = data[pos];
+      if (c >= '0' && c <= '9') {
+        // below 10^7, so below 2^24
+        if (mantissa < 1000000) {
+          mantissa = 10 * mantissa + (c - '0');
+          scale -= fraction ? 1 : 0;
+        }
+        else {
+          exact = false;
+        }
+        digits = true;
+      }
+      else if (c == '.' && !fraction) {
+        fraction = true;
+      }
+      else {
+        break;
+      }
+    }
+    if (!digits) {
+      throw new IllegalArgumentException("bad number at " + start);
+    }
+    if (pos < length && (data[pos] == 'e' || data[pos] == 'E')) {
+      int e = pos + 1;
+      if (e < length && (data[e] == '-' || data[e] == '+')) {
+        e++;
+      }
+      if (e < length && data[e] >= '0' && data[e] <= '9') {
+        while (e < length && data[e] >= '0' && data[e] <= '9') {
+          e++;
+        }
+        pos = e;
+        exact = false;
+      }
+    }
+    if (!exact || scale < -7) {
+      return Float.parseFloat(new String(data, start, pos - start));
+    }
+    // mantissa and the power of ten are exact floats, one rounding
+    float v = (scale == 0) ? mantissa : mantissa / POWERS_OF_TEN[-scale];
+    return negative ? -v : v;
+  }
+
+  private static final float[] POWERS_OF_TEN = { 1e0F, 1e1F, 1e2F, 1e3F, 1e4F, 1e5F, 1e6F,
+      1e7F };
+
+  private void moveTo(float x, float y) {
+    if (pathCommands == 0) {
+      // geomerative moves a path without commands instead of adding one
+      xs[pathPoint] = x;
+      ys[pathPoint] = y;
+      return;
+    }
+    endPath();
+    addCommand(MOVE);
+    pathPoint = points;
+    addPoint(x, y);
+    pathCommands = 0;
+  }
+
+  private void lineTo(float x, float y) {
+    if (pathCommands < 0) {
+      moveTo(0, 0);
+    }
+    addCommand(LINE);
+    addPoint(x, y);
+    pathCommands++;
+  }
+
+  private void curveTo(float x1, float y1, float x2, float y2, float x, float y) {
+    if (pathCommands < 0) {
+      moveTo(0, 0);
+    }
+    addCommand(CURVE);
+    addPoint(x1, y1);
+    addPoint(x2, y2);
+    addPoint(x, y);
+    pathCommands++;
+  }
+
+  private void close() {
+    if (pathCommands <= 0) {
+      return;
+    }
+    if (xs[points - 1] != xs[pathPoint] || ys[points - 1] != ys[pathPoint]) {
+      lineTo(xs[pathPoint], ys[pathPoint]);
+    }
+  }
+
+  /**
+   * Drops the current path if it has no commands, geomerative does not
+   * draw it
+   */
+  private void endPath() {
+    if (pathCommands == 0) {
+      commands--;
+      points--;
+    }
+    pathCommands = -1;
+  }
+
+  private void addCommand(byte op) {
+    if (commands == ops.length) {
+      byte[] o = new byte[2 * commands];
+      System.arraycopy(ops, 0, o, 0, commands);
+      ops = o;
+    }
+    ops[commands++] = op;
+  }
+
+  private void addPoint(float x, float y) {
+    if (points == xs.length) {
+      float[] nx = new float[2 * points];
+      float[] ny = new float[2 * points];
+      System.arraycopy(xs, 0, nx, 0, points);
+      System.arraycopy(ys, 0, ny, 0, points);
+      xs = nx;
+      ys = ny;
+    }
+    xs[points] = x;
+    ys[points] = y;
+    points++;
+  }
+
+  /**
+   * Parses a transform attribute into a matrix m00, m01, m02, m10, m11, m12,
+   * composed like geomerative RMatrix
+   */
+  private static float[] parseTransform(String s) {
+    float[] m = { 1, 0, 0, 0, 1, 0 };
+    int i = 0;
+    while (true) {
+      int open = s.indexOf('(', i);
+      if (open < 0) {
+        break;
+      }
+      int close = s.indexOf(')', open);
+      if (close < 0) {
+        throw new IllegalArgumentException("bad transform " + s);
+      }
+      String name = s.substring(i, open).trim();
+      String[] args = s.substring(open + 1, close).trim().split("[\\s,]+");
+      float[] a = new float[args.length];
+      for (int k = 0; k < args.length; k++) {
+        a[k] = Float.parseFloat(args[k]);
+      }
+      if (name.equals("translate")) {
+        apply(m, 1, 0, a[0], 0, 1, (a.length > 1) ? a[1] : 0);
+      }
+      else if (name.equals("scale")) {
+        apply(m, a[0], 0, 0, 0, (a.length > 1) ? a[1] : a[0], 0);
+      }
+      else if (name.equals("rotate")) {
+        float angle = a[0] * DEG_TO_RAD;
+        if (a.length == 3) {
+          apply(m, 1, 0, a[1], 0, 1, a[2]);
+        }
+        float cos = (float) Math.cos(angle);
+        float sin = (float) Math.sin(angle);
+        apply(m, cos, -sin, 0, sin, cos, 0);
+        if (a.length == 3) {
+          apply(m, 1, 0, -a[1], 0, 1, -a[2]);
+        }
+      }
+      else if (name.equals("skewX")) {
+        apply(m, 1, (float) Math.tan(a[0] * DEG_TO_RAD), 0, 0, 1, 0);
+      }
+      else if (name.equals("skewY")) {
+        apply(m, 1, 0, 0, (float) Math.tan(a[0] * DEG_TO_RAD), 1, 0);
+      }
+      else if (name.equals("matrix")) {
+        apply(m, a[0], a[2], a[4], a[1], a[3], a[5]);
+      }
+      else {
+        throw new IllegalArgumentException("unknown transform " + name);
+      }
+      i = close + 1;
+    }
+    return m;
+  }
+
+  /**
+   * Multiplies a matrix by another from the right, see geomerative
+   * RMatrix.apply()
+   */
+  private static void apply(float[] m, float n00, float n01, float n02, float n10,
+      float n11, float n12) {
+    float r00 = m[0] * n00 + m[1] * n10;
+    float r01 = m[0] * n01 + m[1] * n11;
+    float r02 = m[0] * n02 + m[1] * n12 + m[2];
+    float r10 = m[3] * n00 + m[4] * n10;
+    float r11 = m[3] * n01 + m[4] * n11;
+    float r12 = m[3] * n02 + m[4] * n12 + m[5];
+    m[0] = r00;
+    m[1] = r01;
+    m[2] = r02;
+    m[3] = r10;
+    m[4] = r11;
+    m[5] = r12;
+  }
+
+  private void transform(float[] m, int from, int to) {
+    for (int i = from; i < to; i++) {
+      float x = m[0] * xs[i] + m[1] * ys[i] + m[2];
+      float y = m[3] * xs[i] + m[4] * ys[i] + m[5];
+      xs[i] = x;
+      ys[i] = y;
+    }
+    polylines = null;
+  }
+
+  /**
+   * Scales the shape around a point, like RShape.scale(s, center)
+   *
+   * @param s
+   *            Scale factor
+   * @param x
+   *            Point to scale around
+   * @param y
+   *            Point to scale around
+   */
+  public void scale(float s, float x, float y) {
+    float[] m = { 1, 0, 0, 0, 1, 0 };
+    apply(m, 1, 0, x, 0, 1, y);
+    apply(m, s, 0, 0, 0, s, 0);
+    apply(m, 1, 0, -x, 0, 1, -y);
+    transform(m, 0, points);
+  }
+
+  /**
+   * Scales the shape around the origin, like RShape.scale(s)
+   *
+   * @param s
+   *            Scale factor
+   */
+  public void scale(float s) {
+    scale(s, s);
+  }
+
+  /**
+   * Scales the shape around the origin, like RShape.scale(sx, sy)
+   *
+   * @param sx
+   *            Horizontal scale factor
+   * @param sy
+   *            Vertical scale factor
+   */
+  public void scale(float sx, float sy) {
+    float[] m = { 1, 0, 0, 0, 1, 0 };
+    apply(m, sx, 0, 0, 0, sy, 0);
+    transform(m, 0, points);
+  }
+
+  /**
+   * Moves the shape, like RShape.translate()
+   *
+   * @param x
+   *            Horizontal offset
+   * @param y
+   *            Vertical offset
+   */
+  public void translate(float x, float y) {
+    float[] m = { 1, 0, 0, 0, 1, 0 };
+    apply(m, 1, 0, x, 0, 1, y);
+    transform(m, 0, points);
+  }
+
+  /**
+   * Returns the bounds of the end and control points, like
+   * RShape.getBounds()
+   *
+   * @return min x, min y, max x, max y
+   */
+  public float[] getBounds() {
+    float minX = Float.POSITIVE_INFINITY;
+    float minY = Float.POSITIVE_INFINITY;
+    float maxX = Float.NEGATIVE_INFINITY;
+    float maxY = Float.NEGATIVE_INFINITY;
+    for (int i = 0; i < points; i++) {
+      // geomerative only checks the maximum if the point is not a new
+      // minimum
+      if (xs[i] < minX) {
+        minX = xs[i];
+      }
+      else if (xs[i] > maxX) {
+        maxX = xs[i];
+      }
+      if (ys[i] < minY) {
+        minY = ys[i];
+      }
+      else if (ys[i] > maxY) {
+        maxY = ys[i];
+      }
+    }
+    return new float[] { minX, minY, maxX, maxY };
+  }
+
+  /**
+   * Returns the top left corner of the bounds
+   *
+   * @return Smallest x and y
+   */
+  public RPoint getTopLeft() {
+    float[] b = getBounds();
+    return new RPoint(b[0], b[1]);
+  }
+
+  /**
+   * Returns the bottom right corner of the bounds
+   *
+   * @return Largest x and y
+   */
+  public RPoint getBottomRight() {
+    float[] b = getBounds();
+    return new RPoint(b[2], b[3]);
+  }
+
+  /**
+   * Returns the center of the bounds, like RShape.getCenter()
+   *
+   * @return Center point
+   */
+  public RPoint getCenter() {
+    float[] b = getBounds();
+    return new RPoint((b[2] + b[0]) / 2, (b[3] + b[1]) / 2);
+  }
+
+  /**
+   * Returns the number of points, end and control points
+   *
+   * @return Number of points
+   */
+  public int size() {
+    return points;
+  }
+
+  /**
+   * Computes a content hash of the paths as they are now, after all
+   * transforms
+   *
+   * @return 64 bit FNV-1a of the commands and points
+   */
+  public long hash() {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < commands; i++) {
+      h = ProgressJournal.mix(h, ops[i]);
+    }
+    for (int i = 0; i < points; i++) {
+      h = ProgressJournal.mix(h, Float.floatToIntBits(xs[i]));
+      h = ProgressJournal.mix(h, Float.floatToIntBits(ys[i]));
+    }
+    return h;
+  }
+
+  /**
+   * Returns the paths as polylines. The result is cached until the shape
+   * is transformed.
+   *
+   * @return A MOVE_ABS to the start of every path followed by LINE_ABS to
+   *         the other points, in shape units
+   */
+  public InstructionBuffer flatten() {
+    if (polylines == null) {
+      polylines = new InstructionBuffer(2 * points);
+      flatten(polylines);
+    }
+    return polylines;
+  }
+
+  /**
+   * Flattens the paths into polylines, the points RPath.getPoints() returns
+   *
+   * @param out
+   *            Gets a MOVE_ABS to the start of every path followed by
+   *            LINE_ABS to the other points
+   */
+  public void flatten(InstructionBuffer out) {
+    Flattener f = new Flattener(out);
+    int p = 0;
+    for (int c = 0; c < commands; c++) {
+      switch (ops[c]) {
+      case MOVE:
+        f.end();
+        f.x = xs[p];
+        f.y = ys[p];
+        p++;
+        break;
+      case LINE:
+        f.line(xs[p], ys[p]);
+        p++;
+        break;
+      case CURVE:
+        f.curve(xs[p], ys[p], xs[p + 1], ys[p + 1], xs[p + 2], ys[p + 2]);
+        p += 3;
+        break;
+      }
+    }
+    f.end();
+  }
+
+  /**
+   * Emits the points of one path after the other, like RPath.getPoints()
+   * with RCommand.UNIFORMLENGTH: a point every SEGMENT_LENGTH along the
+   * path, measured on steps of the command, and its end point
+   */
+  private static class Flattener {
+
+    private final InstructionBuffer out;
+
+    // current point
+    float x, y;
+
+    // length until the next point, carried from command to command
+    private float until;
+
+    // points of the path so far, points of the current command
+    private int pathPoints;
+    private int commandPoints;
+    private float lastX, lastY;
+
+    Flattener(InstructionBuffer out) {
+      this.out = out;
+    }
+
+    void line(float ex, float ey) {
+      float dx = ex - x;
+      float dy = ey - y;
+      float length = (float) Math.sqrt(dx * dx + dy * dy);
+      float steps = (int) (length * 2);
+      if (steps < 4) {
+        steps = 4;
+      }
+      float dt = 1F / steps;
+      float fx = x;
+      float fy = y;
+      float sx = (ex - x) * dt;
+      float sy = (ey - y) * dt;
+      float step = (float) Math.sqrt(sx * sx + sy * sy);
+      commandPoints = 0;
+      for (int i = 0; i <= steps; i++) {
+        if (until <= 0) {
+          point(fx, fy);
+          until += SEGMENT_LENGTH;
+        }
+        until -= step;
+        fx += sx;
+        fy += sy;
+      }
+      x = ex;
+      y = ey;
+    }
+
+    void curve(float x1, float y1, float x2, float y2, float ex, float ey) {
+      float dx1 = x1 - x;
+      float dy1 = y1 - y;
+      float dx2 = x2 - x1;
+      float dy2 = y2 - y1;
+      float dx3 = ex - x2;
+      float dy3 = ey - y2;
+      float length = (float) Math.sqrt(dx1 * dx1 + dy1 * dy1)
+          + (float) Math.sqrt(dx2 * dx2 + dy2 * dy2) + (float) Math.sqrt(dx3 * dx3 + dy3 * dy3);
+      float steps = (int) (length * 2);
+      if (steps < 4) {
+        steps = 4;
+      }
+      // forward differences
+      float dt = 1F / steps;
+      float dt2 = dt * dt;
+      float fx = x;
+      float fdx = 3F * (x1 - x) * dt;
+      float fddPer2x = 3F * (x - 2F * x1 + x2) * dt2;
+      float fdddPer2x = 3F * (3F * (x1 - x2) + ex - x) * dt2 * dt;
+      float fdddx = fdddPer2x + fdddPer2x;
+      float fddx = fddPer2x + fddPer2x;
+      float fdddPer6x = fdddPer2x * (1.0F / 3F);
+      float fy = y;
+      float fdy = 3F * (y1 - y) * dt;
+      float fddPer2y = 3F * (y - 2F * y1 + y2) * dt2;
+      float fdddPer2y = 3F * (3F * (y1 - y2) + ey - y) * dt2 * dt;
+      float fdddy = fdddPer2y + fdddPer2y;
+      float fddy = fddPer2y + fddPer2y;
+      float fdddPer6y = fdddPer2y * (1.0F / 3F);
+      commandPoints = 0;
+      for (int i = 0; i < steps; i++) {
+        if (until <= 0) {
+          point(fx, fy);
+          until += SEGMENT_LENGTH;
+        }
+        float sx = fdx + fddPer2x + fdddPer6x;
+        float sy = fdy + fddPer2y + fdddPer6y;
+        until -= (float) Math.sqrt(sx * sx + sy * sy);
+        fx += sx;
+        fdx = fdx + fddx + fdddPer2x;
+        fddx += fdddx;
+        fddPer2x += fdddPer2x;
+        fy += sy;
+        fdy = fdy + fddy + fdddPer2y;
+        fddy += fdddy;
+        fddPer2y += fdddPer2y;
+      }
+      x = ex;
+      y = ey;
+    }
+
+    private void point(float px, float py) {
+      // the first point of a command is dropped if the previous one ended
+      // there
+      boolean first = commandPoints++ == 0;
+      if (first && pathPoints > 0 && px == lastX && py == lastY) {
+        return;
+      }
+      out.add((pathPoints == 0) ? Instruction.MOVE_ABS : Instruction.LINE_ABS, px, py);
+      pathPoints++;
+      lastX = px;
+      lastY = py;
+    }
+
+    /**
+     * Ends a path with the end point of its last command
+     */
+    void end() {
+      if (pathPoints > 0) {
+        out.add(Instruction.LINE_ABS, x, y);
+      }
+      pathPoints = 0;
+      until = 0;
+    }
+  }
+
+}
@@ -0,0 +1,212 @@
+package com.tinkerlog.kritzler;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Path ordering for large jobs. The paths are sorted along a Hilbert curve
+ * and cut into tiles of TILE_SIZE consecutive paths, which are compact areas
+ * of the drawing. Every tile is ordered on its own (PathOrder) on a
+ * fork-join pool, and the tiles are drawn in curve order. Neighbouring
+ * tiles meet at a fixed point on the curve between them, where the route
+ * through one tile has to end and the route through the next one starts,
+ * so the tiles join up without knowing each other's order. Tiles are
+ * improved to convergence instead of under a time budget, so the result
+ * does not depend on the number of threads or the speed of the machine.
+ */
+public final class TiledOrder {
+
+  /** Number of paths per tile. */
+  public static final int TILE_SIZE = 4096;
+
+  // resolution of the Hilbert curve, 2^ORDER cells per side, the curve
+  // index has to stay below 2^31 to sort as the upper half of a long
+  private static final int ORDER = 15;
+
+  private TiledOrder() {
+  }
+
+  /**
+   * Orders paths tile by tile
+   *
+   * @param sx
+   *            X of the first point of each path
+   * @param sy
+   *            Y of the first point
+   * @param ex
+   *            X of the last point
+   * @param ey
+   *            Y of the last point
+   * @param n
+   *            Number of paths
+   * @param x
+   *            Pen position to start from
+   * @param y
+   *            Pen position to start from
+   * @param gaps
+   *            Cost of the gaps between paths, each tile is ordered with a
+   *            share() of it
+   * @param threads
+   *            Number of worker threads
+   * @return Path indices in drawing order, ~index for a path to be drawn
+   *         from its last to its first point
+   */
+  public static int[] order(float[] sx, float[] sy, float[] ex, float[] ey, int n, float x,
+      float y, GapModel gaps, int threads) {
+    int[] curve = hilbertOrder(sx, sy, ex, ey, n);
+    int tiles = (n + TILE_SIZE - 1) / TILE_SIZE;
+
+    // tiles are handed over between the last path of a tile and the first
+    // one of the next along the curve: a tile ends where the next starts
+    float[] startX = new float[tiles + 1];
+    float[] startY = new float[tiles + 1];
+    startX[0] = x;
+    startY[0] = y;
+    for (int t = 1; t < tiles; t++) {
+      int last = curve[t * TILE_SIZE - 1];
+      int next = curve[t * TILE_SIZE];
+      startX[t] = (ex[last] + sx[next]) / 2;
+      startY[t] = (ey[last] + sy[next]) / 2;
+    }
+    // the last tile ends anywhere
+    startX[tiles] = Float.NaN;
+    startY[tiles] = Float.NaN;
+
+    int[] order = new int[n];
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+    try {
+      pool.invoke(new Tiles(sx, sy, ex, ey, n, curve, startX, startY, gaps, order, 0,
+          tiles));
+    }
+    finally {
+      pool.shutdown();
+    }
+    return order;
+  }
+
+  /**
+   * Sorts the paths along a Hilbert curve through the bounding box of all
+   * end points, by the middle between their end points
+   *
+   * @return Path indices in curve order
+   */
+  static int[] hilbertOrder(float[] sx, float[] sy, float[] ex, float[] ey, int n) {
+    float minX = Float.POSITIVE_INFINITY;
+    float minY = Float.POSITIVE_INFINITY;
+    float maxX = Float.NEGATIVE_INFINITY;
+    float maxY = Float.NEGATIVE_INFINITY;
+    for (int i = 0; i < n; i++) {
+      minX = Math.min(minX, Math.min(sx[i], ex[i]));
+      minY = Math.min(minY, Math.min(sy[i], ey[i]));
+      maxX = Math.max(maxX, Math.max(sx[i], ex[i]));
+      maxY = Math.max(maxY, Math.max(sy[i], ey[i]));
+    }
+    int side = (1 << ORDER) - 1;
+    float scale = side / Math.max(Math.max(maxX - minX, maxY - minY), 1e-6F);
+
+    // curve index in the upper, path index in the lower half, ties keep
+    // the input order
+    long[] keys = new long[n];
+    for (int i = 0; i < n; i++) {
+      int cx = (int) (((sx[i] + ex[i]) / 2 - minX) * scale);
+      int cy = (int) (((sy[i] + ey[i]) / 2 - minY) * scale);
+      cx = Math.min(Math.max(cx, 0), side);
+      cy = Math.min(Math.max(cy, 0), side);
+      keys[i] = (hilbert(cx, cy) << 32) | i;
+    }
+    Arrays.sort(keys);
+    int[] curve = new int[n];
+    for (int i = 0; i < n; i++) {
+      curve[i] = (int) keys[i];
+    }
+    return curve;
+  }
+
+  /**
+   * Distance of a cell along the Hilbert curve
+   */
+  private static long hilbert(int x, int y) {
+    long d = 0;
+    for (int s = 1 << (ORDER - 1); s > 0; s >>= 1) {
+      int rx = ((x & s) > 0) ? 1 : 0;
+      int ry = ((y & s) > 0) ? 1 : 0;
+      d += (long) s * s * ((3 * rx) ^ ry);
+      // rotate the quadrant
+      if (ry == 0) {
+        if (rx == 1) {
+          x = (1 << ORDER) - 1 - x;
+          y = (1 << ORDER) - 1 - y;
+        }
+        int t = x;
+        x = y;
+        y = t;
+      }
+    }
+    return d;
+  }
+
+  /**
+   * Orders the tiles from first up to last exclusive, splitting the range
+   * in halves for the pool
+   */
+  @SuppressWarnings("serial")
+  private static class Tiles extends RecursiveAction {
+
+    private final float[] sx, sy, ex, ey;
+    private final int n;
+    private final int[] curve;
+    private final float[] startX, startY;
+    private final GapModel gaps;
+    private final int[] order;
+    private final int first, last;
+
+    Tiles(float[] sx, float[] sy, float[] ex, float[] ey, int n, int[] curve, float[] startX,
+        float[] startY, GapModel gaps, int[] order, int first, int last) {
+      this.sx = sx;
+      this.sy = sy;
+      this.ex = ex;
+      this.ey = ey;
+      this.n = n;
+      this.curve = curve;
+      this.startX = startX;
+      this.startY = startY;
+      this.gaps = gaps;
+      this.order = order;
+      this.first = first;
+      this.last = last;
+    }
+
+    protected void compute() {
+      if (last - first > 1) {
+        int mid = (first + last) >>> 1;
+        invokeAll(new Tiles(sx, sy, ex, ey, n, curve, startX, startY, gaps, order, first,
+            mid), new Tiles(sx, sy, ex, ey, n, curve, startX, startY, gaps, order, mid, last));
+        return;
+      }
+      int from = first * TILE_SIZE;
+      int m = Math.min(n, from + TILE_SIZE) - from;
+      float[] tsx = new float[m];
+      float[] tsy = new float[m];
+      float[] tex = new float[m];
+      float[] tey = new float[m];
+      for (int k = 0; k < m; k++) {
+        int i = curve[from + k];
+        tsx[k] = sx[i];
+        tsy[k] = sy[i];
+        tex[k] = ex[i];
+        tey[k] = ey[i];
+      }
+      float x = startX[first];
+      float y = startY[first];
+      int[] tile = PathOrder.nearestNeighbour(tsx, tsy, tex, tey, m, x, y);
+      PathOrder.improve(tsx, tsy, tex, tey, tile, x, y, startX[first + 1],
+          startY[first + 1], gaps.share());
+      for (int k = 0; k < m; k++) {
+        int t = tile[k];
+        order[from + k] = (t < 0) ? ~curve[from + ~t] : curve[from + t];
+      }
+    }
+  }
+
+}
@@ -0,0 +1,47 @@
+package com.tinkerlog.kritzler;
+
+import java.io.IOException;
+
+/**
+ * Byte link between the Kritzler and its firmware. Implemented by the real
+ * serial port and by the FirmwareSimulator.
+ */
+public interface Transport {
+
+  /**
+   * Returns the number of bytes that can be read without blocking
+   * 
+   * @return Number of available bytes
+   */
+  int available();
+
+  /**
+   * Reads the next byte
+   * 
+   * @return Byte value 0..255, or -1 if none is available
+   */
+  int read();
+
+  /**
+   * Writes bytes to the firmware
+   * 
+   * @param buf
+   *            Buffer holding the bytes
+   * @param off
+   *            Offset of the first byte
+   * @param len
+   *            Number of bytes
+   * @throws IOException
+   *             If the link is broken
+   */
+  void write(byte[] buf, int off, int len) throws IOException;
+
+  /**
+   * Returns the current time of the link. Used for timeouts, so simulated
+   * links can run on virtual time.
+   * 
+   * @return Time in milliseconds
+   */
+  long millis();
+
+}